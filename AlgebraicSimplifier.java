@@ -0,0 +1,144 @@
+import soot.*;
+import soot.jimple.*;
+
+/*
+ * Algebraic identities that hold for every value of the non-constant
+ * operand, e.g. x * 1 = x, x - x = 0, x ^ x = 0, x * 0 = 0.
+ *
+ * Integer identities hold for ints and longs alike. For float and double
+ * only the ones that also hold for NaN, infinities and -0.0 are used, so
+ * x + 0.0 and x * 0.0 are left alone.
+ */
+public class AlgebraicSimplifier {
+    // returns the simpler value 'expr' is equal to, or null
+    public static Value simplify(BinopExpr expr){
+        Type type = expr.getType();
+        Value left = expr.getOp1();
+        Value right = expr.getOp2();
+
+        if (type instanceof IntType || type instanceof LongType)
+            return simplifyInteger(expr, left, right, type instanceof LongType);
+
+        if (type instanceof FloatType || type instanceof DoubleType)
+            return simplifyReal(expr, left, right);
+
+        return null;
+    }
+
+    private static Value simplifyInteger(BinopExpr expr, Value left, Value right, boolean isLong){
+        Value zero = isLong ? LongConstant.v(0) : IntConstant.v(0);
+        boolean same = Utils.isLocal(left) && left == right;
+
+        // x + 0, 0 + x
+        if (Utils.isAddExpr(expr)){
+            if (isInteger(right, 0))
+                return left;
+            if (isInteger(left, 0))
+                return right;
+        }
+
+        // x - 0, x - x
+        if (Utils.isSubExpr(expr)){
+            if (isInteger(right, 0))
+                return left;
+            if (same)
+                return zero;
+        }
+
+        // x * 1, 1 * x, x * 0, 0 * x
+        if (Utils.isMulExpr(expr)){
+            if (isInteger(right, 1))
+                return left;
+            if (isInteger(left, 1))
+                return right;
+            if (isInteger(right, 0) || isInteger(left, 0))
+                return zero;
+        }
+
+        // x / 1
+        if (Utils.isDivExpr(expr) && isInteger(right, 1))
+            return left;
+
+        // x % 1, x % -1
+        if (Utils.isRemExpr(expr) && (isInteger(right, 1) || isInteger(right, -1)))
+            return zero;
+
+        // x ^ 0, 0 ^ x, x ^ x
+        if (Utils.isXorExpr(expr)){
+            if (isInteger(right, 0))
+                return left;
+            if (isInteger(left, 0))
+                return right;
+            if (same)
+                return zero;
+        }
+
+        // x | 0, 0 | x, x | x
+        if (Utils.isOrExpr(expr)){
+            if (isInteger(right, 0))
+                return left;
+            if (isInteger(left, 0))
+                return right;
+            if (same)
+                return left;
+        }
+
+        // x & 0, 0 & x, x & -1, -1 & x, x & x
+        if (Utils.isAndExpr(expr)){
+            if (isInteger(right, 0) || isInteger(left, 0))
+                return zero;
+            if (isInteger(right, -1))
+                return left;
+            if (isInteger(left, -1))
+                return right;
+            if (same)
+                return left;
+        }
+
+        // x << 0, x >> 0, x >>> 0
+        if (Utils.isShlExpr(expr) || Utils.isShrExpr(expr) || Utils.isUshrExpr(expr)){
+            if (isInteger(right, 0))
+                return left;
+        }
+
+        return null;
+    }
+
+    private static Value simplifyReal(BinopExpr expr, Value left, Value right){
+        // x * 1.0, 1.0 * x, x / 1.0
+        if (Utils.isMulExpr(expr)){
+            if (isReal(right, 1.0))
+                return left;
+            if (isReal(left, 1.0))
+                return right;
+        }
+
+        if (Utils.isDivExpr(expr) && isReal(right, 1.0))
+            return left;
+
+        // x - 0.0 keeps the sign of x = -0.0, x + 0.0 doesn't
+        if (Utils.isSubExpr(expr) && isReal(right, 0.0))
+            return left;
+
+        return null;
+    }
+
+    private static boolean isInteger(Value v, long value){
+        if (Utils.isIntConstant(v))
+            return Utils.extractIntValue(v) == value;
+        if (Utils.isLongConstant(v))
+            return Utils.extractLongValue(v) == value;
+
+        return false;
+    }
+
+    // compares bit patterns so that 0.0 never matches -0.0
+    private static boolean isReal(Value v, double value){
+        if (Utils.isFloatConstant(v))
+            return Float.floatToIntBits(Utils.extractFloatValue(v)) == Float.floatToIntBits((float) value);
+        if (Utils.isDoubleConstant(v))
+            return Double.doubleToLongBits(Utils.extractDoubleValue(v)) == Double.doubleToLongBits(value);
+
+        return false;
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+
+import javax.tools.*;
+
+import soot.*;
+import soot.options.Options;
+import soot.shimple.*;
+
+/*
+ * Measures how the propagators scale with the size of a body
+ *
+ * For every size in '-sizes', SyntheticMethods generates a class, which is
+ * compiled and loaded into Soot. After 'warmup' untimed rounds, each of the
+ * 'iterations' rounds runs the propagator on a fresh Shimple body of every
+ * method, and the time and bytes allocated per body are recorded the way a
+ * JMH average-time benchmark with the GC profiler would. Building the
+ * Shimple bodies isn't part of the measurement.
+ *
+ * Between two sizes, 'exponent' is log(t2 / t1) / log(n2 / n1) for the
+ * time per body t and the units per body n: about 1 for linear work,
+ * 2 or more where something is quadratic in the body size.
+ */
+public class AnalysisBenchmark {
+    public static void main(String[] args) throws Exception {
+        AnalysisBenchmark benchmark = new AnalysisBenchmark();
+
+        for (int i = 0; i + 1 < args.length; i += 2){
+            String value = args[i + 1];
+
+            switch (args[i]){
+                case "-sizes":
+                    benchmark.sizes.clear();
+                    for (String size : value.split(","))
+                        benchmark.sizes.add(Integer.parseInt(size));
+                    break;
+                case "-depth": benchmark.depth = Integer.parseInt(value); break;
+                case "-fan-in": benchmark.fanIn = Integer.parseInt(value); break;
+                case "-density": benchmark.density = Double.parseDouble(value); break;
+                case "-methods": benchmark.methods = Integer.parseInt(value); break;
+                case "-warmup": benchmark.warmup = Integer.parseInt(value); break;
+                case "-iterations": benchmark.iterations = Integer.parseInt(value); break;
+                case "-propagator": benchmark.propagators = Arrays.asList(value.split(",")); break;
+                case "-seed": benchmark.seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
+            }
+        }
+
+        benchmark.run();
+    }
+
+    private void run() throws Exception {
+        Path dir = Files.createTempDirectory("synthetic");
+        List<String> classNames = new ArrayList<>();
+
+        for (int size : sizes){
+            String className = "Synthetic" + size;
+            SyntheticMethods generator = new SyntheticMethods(seed, size, depth, fanIn, density);
+            Files.write(dir.resolve(className + ".java"), generator.generate(className, methods).getBytes());
+            classNames.add(className);
+        }
+
+        compile(dir);
+        load(dir, classNames);
+
+        System.out.println(String.format("%-6s %-6s %8s %12s %10s %14s %9s",
+            "prop", "size", "units", "ns/body", "ns/unit", "bytes/body", "exponent"));
+
+        for (String propagator : propagators){
+            double lastUnits = 0;
+            double lastTime = 0;
+
+            for (int i = 0; i < sizes.size(); ++i){
+                List<Body> bodies = new ArrayList<>();
+                for (SootMethod m : Scene.v().getSootClass(classNames.get(i)).getMethods()){
+                    if (m.isConcrete() && !m.isConstructor())
+                        bodies.add(m.retrieveActiveBody());
+                }
+
+                for (int round = 0; round < warmup; ++round)
+                    measure(propagator, bodies);
+
+                long time = 0;
+                long bytes = 0;
+                long units = 0;
+                for (int round = 0; round < iterations; ++round){
+                    long[] result = measure(propagator, bodies);
+                    time += result[0];
+                    bytes += result[1];
+                    units += result[2];
+                }
+
+                double count = (double) iterations * bodies.size();
+                double timePerBody = time / count;
+                double unitsPerBody = units / count;
+
+                String exponent = lastTime > 0
+                    ? String.format("%.2f", Math.log(timePerBody / lastTime) / Math.log(unitsPerBody / lastUnits))
+                    : "-";
+
+                System.out.println(String.format("%-6s %-6d %8.0f %12.0f %10.1f %14.0f %9s",
+                    propagator, sizes.get(i), unitsPerBody, timePerBody, timePerBody / unitsPerBody,
+                    bytes < 0 ? Double.NaN : bytes / count, exponent));
+
+                lastUnits = unitsPerBody;
+                lastTime = timePerBody;
+            }
+        }
+    }
+
+    // time, allocated bytes (negative if unknown) and units over all bodies
+    private long[] measure(String propagator, List<Body> bodies){
+        long time = 0;
+        long bytes = 0;
+        long units = 0;
+
+        for (Body body : bodies){
+            ShimpleBody sBody = Shimple.v().newBody(body);
+            units += sBody.getUnits().size();
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+
+            if (propagator.equals("sccp"))
+                new SparseConditionalConstPropagator(sBody);
+            else
+                new SimpleConstPropagator(sBody);
+
+            time += System.nanoTime() - start;
+            bytes = allocated < 0 ? -1 : bytes + allocatedBytes() - allocated;
+        }
+
+        return new long[]{ time, bytes, units };
+    }
+
+    private static long allocatedBytes(){
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void compile(Path dir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new IllegalStateException("No Java compiler, run this on a JDK");
+
+        List<String> args = new ArrayList<>(Arrays.asList("-d", dir.toString()));
+        try (DirectoryStream<Path> sources = Files.newDirectoryStream(dir, "*.java")){
+            for (Path source : sources)
+                args.add(source.toString());
+        }
+
+        if (compiler.run(null, null, null, args.toArray(new String[0])) != 0)
+            throw new IllegalStateException("Couldn't compile the generated classes");
+    }
+
+    private static void load(Path dir, List<String> classNames){
+        Options.v().set_soot_classpath(dir.toString());
+        Options.v().set_prepend_classpath(true);
+        Options.v().setPhaseOption("jb", "use-original-names:true");
+
+        for (String className : classNames)
+            Scene.v().addBasicClass(className, SootClass.BODIES);
+
+        Scene.v().loadNecessaryClasses();
+
+        for (String className : classNames)
+            Scene.v().getSootClass(className).setApplicationClass();
+    }
+
+    private List<Integer> sizes = new ArrayList<>(Arrays.asList(100, 200, 400, 800, 1600));
+    private int depth = 3;
+    private int fanIn = 4;
+    private double density = 0.5;
+    private int methods = 10;
+    private int warmup = 3;
+    private int iterations = 10;
+    private List<String> propagators = Arrays.asList("simple", "sccp");
+    private long seed = 42;
+}
@@ -1,9 +1,9 @@
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.File;
 import java.util.Map;
 
 import soot.Body;
 import soot.BodyTransformer;
+import soot.PhaseOptions;
 
 public class AnalysisTransformer extends BodyTransformer {
     @Override
@@ -11,19 +11,88 @@ public class AnalysisTransformer extends BodyTransformer {
         if (body.getMethod().isConstructor())
             return;
 
-        // write the unchanged shimple body to a file
-        String fileName = body.getMethod().getName() + ".shimple";
-        try {
-            FileWriter fWriter = new FileWriter(fileName);
-            fWriter.write(body.toString());
-            fWriter.close();
-        } catch (IOException e) {
-            System.err.println("Couldn't open file '" + fileName + "'");
-            e.printStackTrace();
-        }
+        // with '-p stp.cp dump:true' the unchanged shimple body is written to
+        // 'dump-dir' in the background, gzipped with 'dump-compress:true'
+        if (PhaseOptions.getBoolean(options, "dump"))
+            dumper(options).dump(body);
 
         // System.out.println("---------------------- " + body.getMethod().getName() + " ----------------------");
 
-        new SimpleConstPropagator(body);
+        // null unless PA4 runs with '-metrics'
+        MethodMetrics metrics = OptimizationMetrics.of(body.getMethod());
+        int unitsBefore = body.getUnits().size();
+
+        // reads of static fields set once to a constant, off with '-p stp.cp fields:false'
+        FieldConstants fields = FieldConstants.current();
+        if (fields != null && PhaseOptions.getBoolean(options, "fields")){
+            int replaced = fields.substitute(body);
+            if (metrics != null)
+                metrics.constantsFolded += replaced;
+        }
+
+        // expressions a dominating definition already computed, off with
+        // '-p stp.cp gvn:false'. Constants it folds from operands it made
+        // equal are carried further by the propagator
+        if (PhaseOptions.getBoolean(options, "gvn")){
+            GlobalValueNumbering gvn = new GlobalValueNumbering(body);
+            if (metrics != null)
+                gvn.record(metrics);
+        }
+
+        // choose the propagator with '-p stp.cp propagator:sccp', in
+        // whole-program mode it also folds calls and parameters
+        String propagator = PhaseOptions.getString(options, "propagator");
+        if (propagator.equals("sccp")){
+            SparseConditionalConstPropagator sccp =
+                new SparseConditionalConstPropagator(body, InterproceduralConstants.summaries(), true);
+            if (metrics != null)
+                sccp.record(metrics);
+        } else {
+            SimpleConstPropagator simple = new SimpleConstPropagator(body);
+            if (metrics != null)
+                simple.record(metrics);
+        }
+
+        // branches on values whose ranges decide them, off with '-p stp.cp ranges:false'
+        if (PhaseOptions.getBoolean(options, "ranges")){
+            ValueRangeAnalysis ranges = new ValueRangeAnalysis(body);
+            if (metrics != null)
+                ranges.record(metrics);
+        }
+
+        // definitions propagation left without live uses
+        new DeadCodeEliminator(body);
+
+        // jumps over emptied and unreachable blocks
+        new CfgSimplifier(body);
+
+        if (metrics != null){
+            metrics.units = unitsBefore;
+            metrics.statementsRemoved += unitsBefore - body.getUnits().size();
+        }
+    }
+
+    // waits for the dumped bodies to be written, if any were
+    void close(){
+        ShimpleDumper d;
+        synchronized (this){
+            d = dumper;
+            dumper = null;
+        }
+
+        if (d != null)
+            d.close();
     }
+
+    // bodies of different classes may be transformed concurrently
+    private synchronized ShimpleDumper dumper(Map<String, String> options){
+        if (dumper == null){
+            dumper = new ShimpleDumper(new File(PhaseOptions.getString(options, "dump-dir")),
+                PhaseOptions.getBoolean(options, "dump-compress"));
+        }
+
+        return dumper;
+    }
+
+    private ShimpleDumper dumper;
 }
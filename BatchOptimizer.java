@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import soot.*;
+import soot.options.Options;
+
+/*
+ * Optimizes class files handed over in batches, in one Scene
+ *
+ * Soot is set up once. Every batch is written where Soot finds it, loaded
+ * as the application classes and run through the usual packs, and what
+ * Soot writes is returned by class name, including the classes it
+ * generated, e.g. for lambdas. Before the next batch the classes of the
+ * last one leave the Scene, and with them their bodies, together with the
+ * 'transient' classes, which were only loaded because the batch referred
+ * to them. Library classes that aren't transient stay resolved.
+ *
+ * Classes a batch refers to but doesn't carry are looked up on the class
+ * path, or else left phantom. Methods of other batches aren't inlined.
+ */
+public class BatchOptimizer {
+    BatchOptimizer(List<String> sootArgs, String classPath, AnalysisTransformer analysisTransformer,
+                   Set<String> transientClasses) throws IOException {
+        this.analysisTransformer = analysisTransformer;
+        this.transientClasses = transientClasses;
+
+        // batches are written where Soot finds them first and optimized into a directory of their own
+        Path work = Files.createTempDirectory("pa4-batch");
+        classesDir = Files.createDirectory(work.resolve("classes"));
+        outputDir = Files.createDirectory(work.resolve("output"));
+
+        List<String> args = new ArrayList<>(sootArgs);
+        int dir = args.indexOf("-process-dir");
+        if (dir >= 0){
+            args.remove(dir + 1);
+            args.remove(dir);
+        }
+        args.set(args.indexOf("-cp") + 1, classesDir + File.pathSeparator + classPath);
+
+        // classes are resolved after the Scene is done resolving, which Soot
+        // only checks for to catch missing basic classes
+        args.addAll(Arrays.asList("-allow-phantom-refs", "-ignore-resolving-levels", "-d", outputDir.toString()));
+
+        long start = System.nanoTime();
+        if (!Options.v().parse(args.toArray(new String[0])))
+            throw new CompilationDeathException("Option parse error");
+        Scene.v().loadNecessaryClasses();
+
+        System.err.println(String.format("[batch] Scene ready in %.1f ms", (System.nanoTime() - start) / 1e6));
+    }
+
+    // the optimized class files by name
+    Map<String, byte[]> optimize(List<byte[]> classes) throws IOException {
+        // the last batch's classes, any Soot generated for them, and what they referred to
+        for (SootClass c : new ArrayList<>(Scene.v().getClasses())){
+            if (c.isApplicationClass() || transientClasses.contains(c.getName()))
+                Scene.v().removeClass(c);
+        }
+        clear(classesDir);
+        clear(outputDir);
+
+        List<String> names = new ArrayList<>();
+        for (byte[] bytes : classes){
+            String name = className(bytes);
+            Path file = classesDir.resolve(name.replace('.', File.separatorChar) + ".class");
+            Files.createDirectories(file.getParent());
+            Files.write(file, bytes);
+            names.add(name);
+        }
+
+        // the locator caches what it found on the class path
+        SourceLocator.v().invalidateClassPath();
+        for (String name : names)
+            Scene.v().loadClassAndSupport(name).setApplicationClass();
+
+        // the inliner keeps the callees of the last batch
+        Transform inline = PackManager.v().getPack("stp").get("stp.inline");
+        if (inline != null && inline.getTransformer() instanceof Inliner)
+            ((Inliner) inline.getTransformer()).clear();
+
+        new ParallelOptimizer(0).run();
+        PackManager.v().runPacks();
+        PackManager.v().writeOutput();
+        analysisTransformer.close();
+
+        Map<String, byte[]> optimized = new TreeMap<>();
+        List<Path> files = new ArrayList<>();
+        try (java.util.stream.Stream<Path> walk = Files.walk(outputDir)){
+            walk.filter(p -> p.toString().endsWith(".class")).forEach(files::add);
+        }
+
+        for (Path file : files){
+            String name = outputDir.relativize(file).toString();
+            name = name.substring(0, name.length() - ".class".length()).replace(File.separatorChar, '.');
+            optimized.put(name, Files.readAllBytes(file));
+        }
+
+        return optimized;
+    }
+
+    // the name in the class file, '.' separated
+    static String className(byte[] bytes) throws IOException {
+        org.objectweb.asm.ClassReader reader;
+        try {
+            reader = new org.objectweb.asm.ClassReader(bytes);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+            throw new IOException("Not a class file", e);
+        }
+
+        return reader.getClassName().replace('/', '.');
+    }
+
+    private static void clear(Path dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (java.util.stream.Stream<Path> walk = Files.walk(dir)){
+            walk.forEach(paths::add);
+        }
+
+        // children before their directories, the directory itself stays
+        Collections.reverse(paths);
+        for (Path path : paths){
+            if (!path.equals(dir))
+                Files.delete(path);
+        }
+    }
+
+    private final AnalysisTransformer analysisTransformer;
+    private final Set<String> transientClasses;
+    private final Path classesDir;
+    private final Path outputDir;
+}
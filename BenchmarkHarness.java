@@ -0,0 +1,57 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.zip.CRC32;
+
+/*
+ * Runs the main method of a test case inside the JVM under test for
+ * BenchmarkRunner: 'warmup' runs that aren't timed, then 'trials' timed
+ * runs. Whatever the test case prints is swallowed, the output of the first
+ * run is only reported as a checksum so the runner can tell that the
+ * original and the optimized class agree.
+ *
+ * Usage: BenchmarkHarness <class> <warmup> <trials>
+ *
+ * This runs on the bundled Java 8 JRE, so it has to stay Java 8 source.
+ */
+public class BenchmarkHarness {
+    public static void main(String[] args) throws Exception {
+        Method main = Class.forName(args[0]).getMethod("main", String[].class);
+        int warmup = Integer.parseInt(args[1]);
+        int trials = Integer.parseInt(args[2]);
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        PrintStream discard = new PrintStream(new OutputStream(){
+            @Override
+            public void write(int b){
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len){
+            }
+        });
+
+        long[] samples = new long[trials];
+        try {
+            for (int i = 0; i < warmup + trials; ++i){
+                System.setOut(i == 0 ? new PrintStream(first, true) : discard);
+
+                long start = System.nanoTime();
+                main.invoke(null, (Object) new String[0]);
+                long time = System.nanoTime() - start;
+
+                if (i >= warmup)
+                    samples[i - warmup] = time;
+            }
+        } finally {
+            System.setOut(out);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(first.toByteArray());
+        out.println("output " + Long.toHexString(crc.getValue()));
+
+        for (long sample : samples)
+            out.println("sample " + sample);
+    }
+}
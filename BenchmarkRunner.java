@@ -0,0 +1,301 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.*;
+
+/*
+ * Compares the running time of every test case with its optimized version
+ *
+ * Each class in the original directory with a main method, and a copy in
+ * the optimized directory, runs in 'forks' fresh JVMs per version and mode
+ * (-Xint and the JIT). Every JVM runs BenchmarkHarness, which does 'warmup'
+ * untimed runs and then 'trials' timed ones. Samples outside the Tukey
+ * fences (1.5 IQR beyond the quartiles) are dropped before the mean and its
+ * 95% confidence interval are computed. The interval of the speedup
+ * (original / optimized mean) comes from the delta method.
+ *
+ * The report is written as JSON. With '-threshold F' the run fails when the
+ * whole interval of a speedup lies below 1 - F, i.e. the optimized class is
+ * slower by more than F beyond noise, or when the two versions print
+ * something different.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+
+        for (int i = 0; i + 1 < args.length; i += 2){
+            String value = args[i + 1];
+
+            switch (args[i]){
+                case "-java": runner.java = value; break;
+                case "-harness": runner.harness = value; break;
+                case "-original": runner.original = value; break;
+                case "-optimized": runner.optimized = value; break;
+                case "-modes": runner.modes = Arrays.asList(value.split(",")); break;
+                case "-forks": runner.forks = Integer.parseInt(value); break;
+                case "-warmup": runner.warmup = Integer.parseInt(value); break;
+                case "-trials": runner.trials = Integer.parseInt(value); break;
+                case "-threshold": runner.threshold = Double.parseDouble(value); break;
+                case "-report": runner.report = value; break;
+                default: throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
+            }
+        }
+
+        if (!runner.run())
+            System.exit(1);
+    }
+
+    // true unless a test case regressed or its output changed
+    private boolean run() throws Exception {
+        List<Result> results = new ArrayList<>();
+
+        for (String name : testCases()){
+            for (String mode : modes){
+                Result result = new Result(name, mode);
+                result.original = measure(original, name, mode);
+                result.optimized = measure(optimized, name, mode);
+                result.outputsMatch = result.original.output.equals(result.optimized.output);
+                result.compare(threshold);
+
+                System.out.println(String.format("%-20s %-4s %12.0f ns %12.0f ns  speedup %.3f [%.3f, %.3f]%s",
+                    name, mode, result.original.mean, result.optimized.mean,
+                    result.speedup, result.speedupLow, result.speedupHigh,
+                    !result.outputsMatch ? "  OUTPUT DIFFERS" : result.regressed ? "  REGRESSED" : ""));
+
+                results.add(result);
+            }
+        }
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(report))){
+            writer.print(toJson(results));
+        }
+
+        System.out.println("Wrote " + report);
+
+        boolean passed = true;
+        for (Result result : results)
+            passed &= result.outputsMatch && !result.regressed;
+
+        return passed;
+    }
+
+    // classes with a main method that have been optimized as well
+    private List<String> testCases() throws Exception {
+        List<String> names = new ArrayList<>();
+        File[] files = new File(original).listFiles();
+        if (files == null)
+            throw new FileNotFoundException(original);
+
+        URLClassLoader loader = new URLClassLoader(new URL[]{ new File(original).toURI().toURL() });
+
+        for (File file : files){
+            String fileName = file.getName();
+            if (!fileName.endsWith(".class") || fileName.contains("$"))
+                continue;
+            if (!new File(optimized, fileName).exists())
+                continue;
+
+            String name = fileName.substring(0, fileName.length() - ".class".length());
+            try {
+                Method main = Class.forName(name, false, loader).getMethod("main", String[].class);
+                if (Modifier.isStatic(main.getModifiers()))
+                    names.add(name);
+            } catch (ReflectiveOperationException | LinkageError e){
+                // not a test case, or not one this JVM can load
+            }
+        }
+
+        Collections.sort(names);
+        return names;
+    }
+
+    private Samples measure(String dir, String name, String mode) throws Exception {
+        List<Long> samples = new ArrayList<>();
+        String output = null;
+
+        for (int fork = 0; fork < forks; ++fork){
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            if (mode.equals("int"))
+                command.add("-Xint");
+
+            command.addAll(Arrays.asList("-cp", harness + File.pathSeparator + dir,
+                "BenchmarkHarness", name, String.valueOf(warmup), String.valueOf(trials)));
+
+            Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))){
+                for (String line = reader.readLine(); line != null; line = reader.readLine()){
+                    if (line.startsWith("output "))
+                        output = line.substring("output ".length());
+                    else if (line.startsWith("sample "))
+                        samples.add(Long.parseLong(line.substring("sample ".length())));
+                }
+            }
+
+            if (process.waitFor() != 0)
+                throw new IllegalStateException("Running " + name + " from '" + dir + "' failed");
+        }
+
+        return new Samples(samples, output);
+    }
+
+    private String toJson(List<Result> results){
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"java\": \"").append(java.replace("\\", "\\\\")).append("\",\n");
+        json.append("  \"forks\": ").append(forks).append(",\n");
+        json.append("  \"warmup\": ").append(warmup).append(",\n");
+        json.append("  \"trials\": ").append(trials).append(",\n");
+        json.append("  \"threshold\": ").append(Double.isNaN(threshold) ? "null" : String.valueOf(threshold)).append(",\n");
+        json.append("  \"results\": [");
+
+        for (int i = 0; i < results.size(); ++i){
+            Result result = results.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"class\": \"").append(result.name).append("\", ");
+            json.append("\"mode\": \"").append(result.mode).append("\", ");
+            json.append("\"outputsMatch\": ").append(result.outputsMatch).append(",\n");
+            json.append("     \"original\": ").append(result.original.toJson()).append(",\n");
+            json.append("     \"optimized\": ").append(result.optimized.toJson()).append(",\n");
+            json.append("     \"speedup\": ").append(number(result.speedup, 4));
+            json.append(", \"speedupCi\": [").append(number(result.speedupLow, 4));
+            json.append(", ").append(number(result.speedupHigh, 4));
+            json.append("], \"regressed\": ").append(result.regressed).append("}");
+        }
+
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    // JSON has no NaN, too few samples leave the interval undefined
+    static String number(double value, int decimals){
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return "null";
+
+        return String.format(Locale.ROOT, "%." + decimals + "f", value);
+    }
+
+    // two-sided 95% quantile of Student's t distribution
+    static double tQuantile(int df){
+        final double[] table = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+        };
+
+        if (df < 1)
+            return Double.NaN;
+
+        return df <= table.length ? table[df - 1] : 1.96;
+    }
+
+    // the timed runs of one version in one mode, outliers removed
+    private static final class Samples {
+        Samples(List<Long> all, String output){
+            this.output = output == null ? "" : output;
+
+            List<Long> sorted = new ArrayList<>(all);
+            Collections.sort(sorted);
+
+            double q1 = quantile(sorted, 0.25);
+            double q3 = quantile(sorted, 0.75);
+            double low = q1 - 1.5 * (q3 - q1);
+            double high = q3 + 1.5 * (q3 - q1);
+
+            for (long sample : sorted){
+                if (sample >= low && sample <= high)
+                    kept.add(sample);
+            }
+
+            rejected = sorted.size() - kept.size();
+
+            double sum = 0;
+            for (long sample : kept)
+                sum += sample;
+            mean = kept.isEmpty() ? Double.NaN : sum / kept.size();
+
+            double squares = 0;
+            for (long sample : kept)
+                squares += (sample - mean) * (sample - mean);
+            stderr = kept.size() > 1 ? Math.sqrt(squares / (kept.size() - 1) / kept.size()) : Double.NaN;
+        }
+
+        double ciLow(){
+            return mean - tQuantile(kept.size() - 1) * stderr;
+        }
+
+        double ciHigh(){
+            return mean + tQuantile(kept.size() - 1) * stderr;
+        }
+
+        String toJson(){
+            return "{\"samples\": " + kept.size() + ", \"rejected\": " + rejected
+                + ", \"meanNs\": " + number(mean, 1)
+                + ", \"ciNs\": [" + number(ciLow(), 1) + ", " + number(ciHigh(), 1) + "]"
+                + ", \"output\": \"" + output + "\"}";
+        }
+
+        // linear interpolation between the closest ranks
+        private static double quantile(List<Long> sorted, double q){
+            if (sorted.isEmpty())
+                return Double.NaN;
+
+            double rank = q * (sorted.size() - 1);
+            int lower = (int) Math.floor(rank);
+            int upper = Math.min(lower + 1, sorted.size() - 1);
+
+            return sorted.get(lower) + (rank - lower) * (sorted.get(upper) - sorted.get(lower));
+        }
+
+        final List<Long> kept = new ArrayList<>();
+        final int rejected;
+        final double mean;
+        final double stderr;
+        final String output;
+    }
+
+    private static final class Result {
+        Result(String name, String mode){
+            this.name = name;
+            this.mode = mode;
+        }
+
+        void compare(double threshold){
+            speedup = original.mean / optimized.mean;
+
+            // delta method for the ratio of two independent means
+            double relative = Math.sqrt(
+                Math.pow(original.stderr / original.mean, 2) + Math.pow(optimized.stderr / optimized.mean, 2));
+            int df = Math.min(original.kept.size(), optimized.kept.size()) - 1;
+            double halfWidth = tQuantile(df) * speedup * relative;
+
+            speedupLow = speedup - halfWidth;
+            speedupHigh = speedup + halfWidth;
+            regressed = !Double.isNaN(threshold) && speedupHigh < 1 - threshold;
+        }
+
+        final String name;
+        final String mode;
+        Samples original;
+        Samples optimized;
+        boolean outputsMatch;
+        double speedup;
+        double speedupLow;
+        double speedupHigh;
+        boolean regressed;
+    }
+
+    private String java = "j2re-image/bin/java";
+    private String harness = "benchmark";
+    private String original = "testcases";
+    private String optimized = "sootOutput";
+    private List<String> modes = Arrays.asList("int", "jit");
+    private int forks = 3;
+    private int warmup = 5;
+    private int trials = 10;
+    private double threshold = Double.NaN;
+    private String report = "benchmark.json";
+}
@@ -0,0 +1,54 @@
+import soot.*;
+
+import java.util.*;
+
+/*
+ * Numbers every unit and local of a body once, so per-statement and
+ * per-local analysis state can live in plain arrays and bitsets indexed
+ * by these numbers instead of hash maps keyed by Unit/Local
+ */
+public class BodyNumbering {
+    BodyNumbering(Body body){
+        units = body.getUnits().toArray(new Unit[0]);
+        unitIndex = new HashMap<>(units.length * 2);
+        for (int i = 0; i < units.length; ++i)
+            unitIndex.put(units[i], i);
+
+        locals = body.getLocals().toArray(new Local[0]);
+        localIndex = new HashMap<>(locals.length * 2);
+        for (int i = 0; i < locals.length; ++i)
+            localIndex.put(locals[i], i);
+    }
+
+    public int unitCount(){
+        return units.length;
+    }
+
+    public int localCount(){
+        return locals.length;
+    }
+
+    public Unit unitAt(int index){
+        return units[index];
+    }
+
+    public Local localAt(int index){
+        return locals[index];
+    }
+
+    // -1 for units added after the numbering was built
+    public int indexOf(Unit u){
+        Integer index = unitIndex.get(u);
+        return index == null ? -1 : index;
+    }
+
+    public int indexOf(Local l){
+        Integer index = localIndex.get(l);
+        return index == null ? -1 : index;
+    }
+
+    private final Unit[] units;
+    private final Local[] locals;
+    private final HashMap<Unit, Integer> unitIndex;
+    private final HashMap<Local, Integer> localIndex;
+}
@@ -0,0 +1,351 @@
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+import soot.toolkits.graph.*;
+import soot.toolkits.scalar.*;
+import soot.util.*;
+
+import java.util.*;
+
+/*
+ * Control flow cleanup after branches have been folded
+ *
+ *   if 2 <= 2 goto L           =>  goto L
+ *   goto L1; L1: goto L2       =>  goto L2
+ *   unreachable blocks         =>  removed, with the phi args and traps
+ *                                  that belonged to them
+ *   goto L; L: ...             =>  L: ...
+ *   if c goto L; L: ...        =>  L: ...
+ *   goto L; ... L: s1; s2      =>  s1; s2, when the goto is L's only way in
+ *   x = Phi(y #p)              =>  x = y
+ *
+ * Phi args name the unit that ends the predecessor block, so every rewrite
+ * keeps them pointing at the unit control actually comes from.
+ */
+public class CfgSimplifier {
+    CfgSimplifier(Body body){
+        this.body = (ShimpleBody) body;
+        this.units = body.getUnits();
+        simplify();
+    }
+
+    private void simplify(){
+        foldBranches();
+        threadJumps();
+        removeUnreachable();
+        mergeBlocks();
+        removeFallThroughBranches();
+        removeTrivialPhis();
+    }
+
+    // conditions over constants, a goto takes the edge that is always taken
+    private void foldBranches(){
+        for (Unit u : new ArrayList<>(units)){
+            if (!Utils.isIfStmt(u))
+                continue;
+
+            IfStmt stmt = (IfStmt) u;
+            Constant condition = ConstantEvaluator.evaluate(stmt.getCondition());
+            if (condition == null)
+                continue;
+
+            Unit next = units.getSuccOf(u);
+            Unit taken = Utils.extractIntValue(condition) != 0 ? stmt.getTarget() : next;
+            Unit notTaken = taken == next ? stmt.getTarget() : next;
+
+            if (notTaken != taken){
+                for (PhiExpr phiExpr : phisAt(notTaken))
+                    phiExpr.removeArg(u);
+            }
+
+            units.swapWith(u, Jimple.v().newGotoStmt(taken));
+        }
+    }
+
+    // point every jump at the end of the goto chain it starts
+    private void threadJumps(){
+        for (Unit u : units){
+            for (UnitBox box : u.getUnitBoxes()){
+                if (!box.isBranchTarget())
+                    continue;
+
+                Unit target = box.getUnit();
+                Unit last = null;
+                Set<Unit> seen = new HashSet<>();
+
+                while (Utils.isGotoStmt(target) && seen.add(target)){
+                    last = target;
+                    target = ((GotoStmt) target).getTarget();
+                }
+
+                // nothing to skip, or an endless goto loop
+                if (last == null || seen.contains(target))
+                    continue;
+
+                if (!canAddPred(u, target, last))
+                    continue;
+
+                // u becomes a predecessor of target, with the values 'last' had
+                for (PhiExpr phiExpr : phisAt(target)){
+                    ValueUnitPair arg = phiExpr.getArgBox(last);
+                    phiExpr.addArg(arg.getValue(), u);
+                }
+
+                box.setUnit(target);
+            }
+        }
+    }
+
+    // a phi can't tell two edges from the same unit apart
+    private boolean canAddPred(Unit u, Unit target, Unit last){
+        List<PhiExpr> phis = phisAt(target);
+        if (phis.isEmpty())
+            return true;
+
+        for (PhiExpr phiExpr : phis){
+            if (phiExpr.getArgBox(last) == null)
+                return false;
+        }
+
+        return !isPredOf(u, target);
+    }
+
+    private boolean isPredOf(Unit u, Unit target){
+        if (u.fallsThrough() && units.getSuccOf(u) == target)
+            return true;
+
+        for (UnitBox box : u.getUnitBoxes()){
+            if (box.isBranchTarget() && box.getUnit() == target)
+                return true;
+        }
+
+        return false;
+    }
+
+    private void removeUnreachable(){
+        ExceptionalUnitGraph graph = new ExceptionalUnitGraph(body);
+        Set<Unit> reachable = new HashSet<>();
+        Deque<Unit> stack = new ArrayDeque<>();
+
+        if (!units.isEmpty()){
+            reachable.add(units.getFirst());
+            stack.push(units.getFirst());
+        }
+
+        while (!stack.isEmpty()){
+            for (Unit succ : graph.getSuccsOf(stack.pop())){
+                if (reachable.add(succ))
+                    stack.push(succ);
+            }
+        }
+
+        if (reachable.size() == units.size())
+            return;
+
+        // phi args from blocks that are going away
+        for (Unit u : units){
+            if (!reachable.contains(u) || !Shimple.isPhiNode(u))
+                continue;
+
+            PhiExpr phiExpr = Shimple.getPhiExpr(u);
+            for (int i = phiExpr.getArgCount() - 1; i >= 0; --i){
+                if (!reachable.contains(phiExpr.getPred(i)))
+                    phiExpr.removeArg(i);
+            }
+        }
+
+        Iterator<Trap> traps = body.getTraps().iterator();
+        while (traps.hasNext()){
+            Trap trap = traps.next();
+
+            if (!reachable.contains(trap.getHandlerUnit())
+                || !coversAny(trap, reachable))
+                traps.remove();
+        }
+
+        for (Unit u : new ArrayList<>(units)){
+            if (!reachable.contains(u))
+                units.remove(u);
+        }
+    }
+
+    private boolean coversAny(Trap trap, Set<Unit> reachable){
+        for (Unit u = trap.getBeginUnit();
+            u != null && u != trap.getEndUnit();
+            u = units.getSuccOf(u)){
+
+            if (reachable.contains(u))
+                return true;
+        }
+
+        return false;
+    }
+
+    // move a block reached by a single goto right after that goto
+    private void mergeBlocks(){
+        Set<Unit> covered = new HashSet<>();
+        for (Trap trap : body.getTraps()){
+            for (Unit u = trap.getBeginUnit();
+                u != null && u != trap.getEndUnit();
+                u = units.getSuccOf(u))
+                covered.add(u);
+        }
+
+        Chain<Unit> chain = units.getNonPatchingChain();
+        Deque<Unit> work = new ArrayDeque<>();
+        for (Unit u : units){
+            if (Utils.isGotoStmt(u))
+                work.add(u);
+        }
+
+        while (!work.isEmpty()){
+            Unit jump = work.poll();
+            if (!units.contains(jump) || covered.contains(jump))
+                continue;
+
+            Unit head = ((GotoStmt) jump).getTarget();
+            Unit before = units.getPredOf(head);
+
+            // the goto has to be the only way into head
+            if (head == units.getFirst() || before == jump
+                || before.fallsThrough() || jumpsInto(head) != 1)
+                continue;
+
+            List<Unit> block = blockAt(head);
+            if (block.contains(jump) || !Collections.disjoint(block, covered))
+                continue;
+
+            Unit tail = block.get(block.size() - 1);
+            Unit next = units.getSuccOf(tail);
+
+            // single-arg phis, the goto is about to disappear
+            for (Unit u : block){
+                if (Shimple.isPhiNode(u)){
+                    PhiExpr phiExpr = Shimple.getPhiExpr(u);
+                    units.swapWith(u, Jimple.v().newAssignStmt(
+                        ((AssignStmt) u).getLeftOp(), phiExpr.getValue(0)));
+                }
+            }
+            block = blockAt(units.getSuccOf(before));
+            tail = block.get(block.size() - 1);
+
+            // move without touching any unit boxes
+            Unit point = jump;
+            for (Unit u : block){
+                chain.remove(u);
+                chain.insertAfter(u, point);
+                point = u;
+            }
+
+            // head used to fall through to 'next', now it has to jump there
+            if (tail.fallsThrough()){
+                Unit goTo = Jimple.v().newGotoStmt(next);
+                chain.insertAfter(goTo, tail);
+
+                // an if's edges both reach next through the goto, or the
+                // phis at next would have one arg for two preds
+                if (Utils.isIfStmt(tail) && ((IfStmt) tail).getTarget() == next)
+                    ((IfStmt) tail).setTarget(goTo);
+
+                // only the edge into next goes through the goto, the phis at
+                // an if's target still come from tail
+                for (PhiExpr phiExpr : phisAt(next)){
+                    int i = phiExpr.getArgIndex(tail);
+                    if (i >= 0)
+                        phiExpr.setPred(i, goTo);
+                }
+
+                tail = goTo;
+            }
+
+            units.remove(jump);
+
+            if (Utils.isGotoStmt(tail))
+                work.add(tail);
+        }
+    }
+
+    // the units from head up to the end of its basic block
+    private List<Unit> blockAt(Unit head){
+        List<Unit> block = new ArrayList<>();
+
+        Unit u = head;
+        while (true){
+            block.add(u);
+
+            Unit next = units.getSuccOf(u);
+            if (next == null || !u.fallsThrough() || u.branches() || jumpsInto(next) > 0)
+                return block;
+
+            u = next;
+        }
+    }
+
+    // branches and traps that point at u
+    private int jumpsInto(Unit u){
+        int count = 0;
+        for (UnitBox box : u.getBoxesPointingToThis()){
+            if (box.isBranchTarget())
+                ++count;
+        }
+
+        return count;
+    }
+
+    // goto L; L:   and   if c goto L; L:
+    private void removeFallThroughBranches(){
+        for (Unit u : new ArrayList<>(units)){
+            if (!Utils.isGotoStmt(u) && !Utils.isIfStmt(u))
+                continue;
+
+            Unit next = units.getSuccOf(u);
+            Unit target = Utils.isGotoStmt(u)
+                ? ((GotoStmt) u).getTarget()
+                : ((IfStmt) u).getTarget();
+
+            if (next == null || target != next)
+                continue;
+
+            // u's own predecessors take over its phi args in next
+            if (!phisAt(next).isEmpty() && !canRemoveBranch(u, next))
+                continue;
+
+            units.remove(u);
+        }
+    }
+
+    private boolean canRemoveBranch(Unit u, Unit next){
+        if (jumpsInto(u) > 0)
+            return false;
+
+        Unit before = units.getPredOf(u);
+        return before != null && !isPredOf(before, next);
+    }
+
+    private void removeTrivialPhis(){
+        for (Unit u : new ArrayList<>(units)){
+            if (!Shimple.isPhiNode(u))
+                continue;
+
+            PhiExpr phiExpr = Shimple.getPhiExpr(u);
+            if (phiExpr.getArgCount() == 1)
+                units.swapWith(u, Jimple.v().newAssignStmt(
+                    ((AssignStmt) u).getLeftOp(), phiExpr.getValue(0)));
+        }
+    }
+
+    // phi nodes at the head of the block starting at u
+    private List<PhiExpr> phisAt(Unit u){
+        List<PhiExpr> phis = new ArrayList<>();
+
+        while (u != null && Shimple.isPhiNode(u)){
+            phis.add(Shimple.getPhiExpr(u));
+            u = units.getSuccOf(u);
+        }
+
+        return phis;
+    }
+
+    private ShimpleBody body;
+    private UnitPatchingChain units;
+}
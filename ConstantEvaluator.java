@@ -0,0 +1,261 @@
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+
+/*
+ * Folds Jimple binary, unary and cast expressions over int, long, float and
+ * double constants with the JVM's semantics: ints and longs wrap around,
+ * shift distances are masked, floating point follows IEEE 754 and cmpl/cmpg
+ * order NaN the way fcmpl/fcmpg do.
+ *
+ * Every method returns null when the expression can't be folded, which
+ * includes integer division and remainder by zero since those have to
+ * throw an ArithmeticException at runtime.
+ *
+ * The expression's operator is found with one visit of a value switch,
+ * and what every binary operator does is a row of Operator, one column per
+ * operand type. Java's own operators on the column's type are exactly the
+ * JVM instructions, so most entries are the operator itself. Another
+ * operator is a row there and a case in OperatorSwitch.
+ */
+public class ConstantEvaluator {
+    // folds 'v' if all of its operands are constants already
+    public static Constant evaluate(Value v){
+        if (Utils.isConstant(v))
+            return (Constant) v;
+
+        Operator op = operatorOf(v);
+        if (op == null)
+            return null;
+
+        switch (op){
+            case NEG:
+                return negate(((NegExpr) v).getOp());
+            case CAST:
+                return cast(((CastExpr) v).getCastType(), ((CastExpr) v).getOp());
+            default:
+                return op.fold(((BinopExpr) v).getOp1(), ((BinopExpr) v).getOp2());
+        }
+    }
+
+    // true for the expressions 'evaluate' folds once their operands are constants
+    public static boolean isFoldable(Value v){
+        return operatorOf(v) != null;
+    }
+
+    // folds 'expr' as if its operands were 'left' and 'right'
+    public static Constant fold(BinopExpr expr, Value left, Value right){
+        Operator op = operatorOf(expr);
+        return op == null ? null : op.fold(left, right);
+    }
+
+    // folds a negation or cast as if its operand were 'op'
+    public static Constant fold(Value expr, Value op){
+        Operator operator = operatorOf(expr);
+        if (operator == Operator.NEG)
+            return negate(op);
+        if (operator == Operator.CAST)
+            return cast(((CastExpr) expr).getCastType(), op);
+
+        return null;
+    }
+
+    private static Operator operatorOf(Value v){
+        OperatorSwitch sw = new OperatorSwitch();
+        v.apply(sw);
+        return sw.getResult();
+    }
+
+    private static Constant negate(Value op){
+        if (Utils.isIntConstant(op))
+            return IntConstant.v(-Utils.extractIntValue(op));
+        if (Utils.isLongConstant(op))
+            return LongConstant.v(-Utils.extractLongValue(op));
+        if (Utils.isFloatConstant(op))
+            return FloatConstant.v(-Utils.extractFloatValue(op));
+        if (Utils.isDoubleConstant(op))
+            return DoubleConstant.v(-Utils.extractDoubleValue(op));
+
+        return null;
+    }
+
+    // java's primitive casts are exactly the JVM's i2l, f2i, d2l, i2b, ...
+    private static Constant cast(Type type, Value op){
+        if (!Utils.isNumericConstant(op))
+            return null;
+
+        if (type instanceof IntType)
+            return IntConstant.v(toInt(op));
+        if (type instanceof LongType)
+            return LongConstant.v(toLong(op));
+        if (type instanceof FloatType)
+            return FloatConstant.v(toFloat(op));
+        if (type instanceof DoubleType)
+            return DoubleConstant.v(toDouble(op));
+        if (type instanceof ByteType)
+            return IntConstant.v((byte) toInt(op));
+        if (type instanceof ShortType)
+            return IntConstant.v((short) toInt(op));
+        if (type instanceof CharType)
+            return IntConstant.v((char) toInt(op));
+
+        return null;
+    }
+
+    private static int toInt(Value op){
+        if (Utils.isLongConstant(op))
+            return (int) Utils.extractLongValue(op);
+        if (Utils.isFloatConstant(op))
+            return (int) Utils.extractFloatValue(op);
+        if (Utils.isDoubleConstant(op))
+            return (int) Utils.extractDoubleValue(op);
+
+        return Utils.extractIntValue(op);
+    }
+
+    private static long toLong(Value op){
+        if (Utils.isLongConstant(op))
+            return Utils.extractLongValue(op);
+        if (Utils.isFloatConstant(op))
+            return (long) Utils.extractFloatValue(op);
+        if (Utils.isDoubleConstant(op))
+            return (long) Utils.extractDoubleValue(op);
+
+        return Utils.extractIntValue(op);
+    }
+
+    private static float toFloat(Value op){
+        if (Utils.isLongConstant(op))
+            return (float) Utils.extractLongValue(op);
+        if (Utils.isFloatConstant(op))
+            return Utils.extractFloatValue(op);
+        if (Utils.isDoubleConstant(op))
+            return (float) Utils.extractDoubleValue(op);
+
+        return (float) Utils.extractIntValue(op);
+    }
+
+    private static double toDouble(Value op){
+        if (Utils.isLongConstant(op))
+            return (double) Utils.extractLongValue(op);
+        if (Utils.isFloatConstant(op))
+            return (double) Utils.extractFloatValue(op);
+        if (Utils.isDoubleConstant(op))
+            return Utils.extractDoubleValue(op);
+
+        return (double) Utils.extractIntValue(op);
+    }
+
+    private static IntConstant bool(boolean b){
+        return IntConstant.v(b ? 1 : 0);
+    }
+
+    // fcmpl/dcmpl push -1 and fcmpg/dcmpg push 1 when either side is NaN
+    private static IntConstant compare(double a, double b, int unordered){
+        return IntConstant.v(a < b ? -1 : (a > b ? 1 : (a == b ? 0 : unordered)));
+    }
+
+    private interface IntFold { Constant apply(int a, int b); }
+    private interface LongFold { Constant apply(long a, long b); }
+    private interface FloatFold { Constant apply(float a, float b); }
+    private interface DoubleFold { Constant apply(double a, double b); }
+
+    // a null entry is an operator the JVM doesn't have for that type
+    private enum Operator {
+        ADD((a, b) -> IntConstant.v(a + b), (a, b) -> LongConstant.v(a + b),
+            (a, b) -> FloatConstant.v(a + b), (a, b) -> DoubleConstant.v(a + b)),
+        SUB((a, b) -> IntConstant.v(a - b), (a, b) -> LongConstant.v(a - b),
+            (a, b) -> FloatConstant.v(a - b), (a, b) -> DoubleConstant.v(a - b)),
+        MUL((a, b) -> IntConstant.v(a * b), (a, b) -> LongConstant.v(a * b),
+            (a, b) -> FloatConstant.v(a * b), (a, b) -> DoubleConstant.v(a * b)),
+        DIV((a, b) -> b == 0 ? null : IntConstant.v(a / b), (a, b) -> b == 0 ? null : LongConstant.v(a / b),
+            (a, b) -> FloatConstant.v(a / b), (a, b) -> DoubleConstant.v(a / b)),
+        REM((a, b) -> b == 0 ? null : IntConstant.v(a % b), (a, b) -> b == 0 ? null : LongConstant.v(a % b),
+            (a, b) -> FloatConstant.v(a % b), (a, b) -> DoubleConstant.v(a % b)),
+
+        AND((a, b) -> IntConstant.v(a & b), (a, b) -> LongConstant.v(a & b), null, null),
+        OR((a, b) -> IntConstant.v(a | b), (a, b) -> LongConstant.v(a | b), null, null),
+        XOR((a, b) -> IntConstant.v(a ^ b), (a, b) -> LongConstant.v(a ^ b), null, null),
+
+        // the distance is an int for long shifts as well, see fold
+        SHL((a, b) -> IntConstant.v(a << b), (a, b) -> LongConstant.v(a << b), null, null),
+        SHR((a, b) -> IntConstant.v(a >> b), (a, b) -> LongConstant.v(a >> b), null, null),
+        USHR((a, b) -> IntConstant.v(a >>> b), (a, b) -> LongConstant.v(a >>> b), null, null),
+
+        CMP(null, (a, b) -> IntConstant.v(Long.compare(a, b)), null, null),
+        CMPL(null, null, (a, b) -> compare(a, b, -1), (a, b) -> compare(a, b, -1)),
+        CMPG(null, null, (a, b) -> compare(a, b, 1), (a, b) -> compare(a, b, 1)),
+
+        // with NaN on either side every condition but != is false, and
+        // -0.0 equals 0.0, as with java's operators
+        EQ((a, b) -> bool(a == b), (a, b) -> bool(a == b), (a, b) -> bool(a == b), (a, b) -> bool(a == b)),
+        NE((a, b) -> bool(a != b), (a, b) -> bool(a != b), (a, b) -> bool(a != b), (a, b) -> bool(a != b)),
+        GT((a, b) -> bool(a > b), (a, b) -> bool(a > b), (a, b) -> bool(a > b), (a, b) -> bool(a > b)),
+        GE((a, b) -> bool(a >= b), (a, b) -> bool(a >= b), (a, b) -> bool(a >= b), (a, b) -> bool(a >= b)),
+        LT((a, b) -> bool(a < b), (a, b) -> bool(a < b), (a, b) -> bool(a < b), (a, b) -> bool(a < b)),
+        LE((a, b) -> bool(a <= b), (a, b) -> bool(a <= b), (a, b) -> bool(a <= b), (a, b) -> bool(a <= b)),
+
+        // unary, folded by negate and cast
+        NEG(null, null, null, null),
+        CAST(null, null, null, null);
+
+        Operator(IntFold ints, LongFold longs, FloatFold floats, DoubleFold doubles){
+            this.ints = ints;
+            this.longs = longs;
+            this.floats = floats;
+            this.doubles = doubles;
+        }
+
+        Constant fold(Value left, Value right){
+            if (this == SHL || this == SHR || this == USHR){
+                if (!Utils.isIntConstant(right))
+                    return null;
+                if (Utils.isLongConstant(left))
+                    return longs.apply(Utils.extractLongValue(left), Utils.extractIntValue(right));
+            }
+
+            if (Utils.isIntConstant(left) && Utils.isIntConstant(right))
+                return ints == null ? null : ints.apply(Utils.extractIntValue(left), Utils.extractIntValue(right));
+            if (Utils.isLongConstant(left) && Utils.isLongConstant(right))
+                return longs == null ? null : longs.apply(Utils.extractLongValue(left), Utils.extractLongValue(right));
+            if (Utils.isFloatConstant(left) && Utils.isFloatConstant(right))
+                return floats == null ? null : floats.apply(Utils.extractFloatValue(left), Utils.extractFloatValue(right));
+            if (Utils.isDoubleConstant(left) && Utils.isDoubleConstant(right))
+                return doubles == null ? null : doubles.apply(Utils.extractDoubleValue(left), Utils.extractDoubleValue(right));
+
+            return null;
+        }
+
+        private final IntFold ints;
+        private final LongFold longs;
+        private final FloatFold floats;
+        private final DoubleFold doubles;
+    }
+
+    // the operator of a foldable expression, null for anything else
+    // (phis included, which only a shimple switch may visit)
+    private static class OperatorSwitch extends AbstractShimpleValueSwitch<Operator> {
+        @Override public void caseAddExpr(AddExpr v){ setResult(Operator.ADD); }
+        @Override public void caseSubExpr(SubExpr v){ setResult(Operator.SUB); }
+        @Override public void caseMulExpr(MulExpr v){ setResult(Operator.MUL); }
+        @Override public void caseDivExpr(DivExpr v){ setResult(Operator.DIV); }
+        @Override public void caseRemExpr(RemExpr v){ setResult(Operator.REM); }
+        @Override public void caseAndExpr(AndExpr v){ setResult(Operator.AND); }
+        @Override public void caseOrExpr(OrExpr v){ setResult(Operator.OR); }
+        @Override public void caseXorExpr(XorExpr v){ setResult(Operator.XOR); }
+        @Override public void caseShlExpr(ShlExpr v){ setResult(Operator.SHL); }
+        @Override public void caseShrExpr(ShrExpr v){ setResult(Operator.SHR); }
+        @Override public void caseUshrExpr(UshrExpr v){ setResult(Operator.USHR); }
+        @Override public void caseCmpExpr(CmpExpr v){ setResult(Operator.CMP); }
+        @Override public void caseCmplExpr(CmplExpr v){ setResult(Operator.CMPL); }
+        @Override public void caseCmpgExpr(CmpgExpr v){ setResult(Operator.CMPG); }
+        @Override public void caseEqExpr(EqExpr v){ setResult(Operator.EQ); }
+        @Override public void caseNeExpr(NeExpr v){ setResult(Operator.NE); }
+        @Override public void caseGtExpr(GtExpr v){ setResult(Operator.GT); }
+        @Override public void caseGeExpr(GeExpr v){ setResult(Operator.GE); }
+        @Override public void caseLtExpr(LtExpr v){ setResult(Operator.LT); }
+        @Override public void caseLeExpr(LeExpr v){ setResult(Operator.LE); }
+        @Override public void caseNegExpr(NegExpr v){ setResult(Operator.NEG); }
+        @Override public void caseCastExpr(CastExpr v){ setResult(Operator.CAST); }
+    }
+}
@@ -0,0 +1,170 @@
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+import soot.shimple.toolkits.scalar.*;
+
+import java.util.*;
+
+/*
+ * Mark-and-sweep dead code elimination over a ShimpleBody
+ *
+ * Every statement with an effect besides defining a local (invokes, field
+ * and array accesses, anything that may throw, branches, returns, identity
+ * stmts) is live. So is the definition of every local a live statement
+ * uses. Everything else is removed, including phi webs that only feed
+ * each other around a loop, which counting uses can't detect.
+ */
+public class DeadCodeEliminator {
+    DeadCodeEliminator(Body body){
+        this.body = (ShimpleBody) body;
+        eliminate();
+    }
+
+    private void eliminate(){
+        UnitPatchingChain units = body.getUnits();
+        ShimpleLocalDefs localDefs = new ShimpleLocalDefs(body);
+        BodyNumbering numbering = new BodyNumbering(body);
+
+        BitSet live = new BitSet(numbering.unitCount());
+        IntWorklist q = new IntWorklist(numbering.unitCount());
+
+        // mark
+        for (int i = 0; i < numbering.unitCount(); ++i){
+            if (!isRemovable(numbering.unitAt(i))){
+                live.set(i);
+                q.add(i);
+            }
+        }
+
+        while (!q.isEmpty()){
+            Unit u = numbering.unitAt(q.poll());
+
+            for (ValueBox box : u.getUseBoxes()){
+                if (!Utils.isLocal(box.getValue()))
+                    continue;
+
+                for (Unit def : localDefs.getDefsOf((Local) box.getValue())){
+                    int index = numbering.indexOf(def);
+
+                    if (!live.get(index)){
+                        live.set(index);
+                        q.add(index);
+                    }
+                }
+            }
+        }
+
+        // sweep
+        for (int i = 0; i < numbering.unitCount(); ++i){
+            Unit u = numbering.unitAt(i);
+            if (live.get(i))
+                continue;
+
+            // removing a unit hands its phi args and jumps to its predecessor,
+            // the first unit has none so it stays for the jimple passes to drop,
+            // and so does one that would merge edges. Either keeps its place
+            // but not its operands, whose definitions may be gone
+            if ((u == units.getFirst() && !u.getBoxesPointingToThis().isEmpty()) || mergesEdges(u, units)){
+                Local local = (Local) ((AssignStmt) u).getLeftOp();
+                if (!Utils.isConstant(((AssignStmt) u).getRightOp()))
+                    units.swapWith(u, Jimple.v().newAssignStmt(local, zeroOf(local.getType())));
+                continue;
+            }
+
+            units.remove(u);
+        }
+    }
+
+    // the phi args 'u' hands over on removal would have two values for one
+    // edge when a unit before it also jumps past it into the same block
+    private boolean mergesEdges(Unit u, UnitPatchingChain units){
+        boolean phiPred = false;
+        boolean jumpTarget = false;
+        for (UnitBox box : u.getBoxesPointingToThis()){
+            if (box.isBranchTarget())
+                jumpTarget = true;
+            else
+                phiPred = true;
+        }
+
+        if (!phiPred)
+            return false;
+        if (jumpTarget)
+            return true;
+
+        Unit before = units.getPredOf(u);
+        Unit after = units.getSuccOf(u);
+        if (before == null)
+            return false;
+
+        for (UnitBox box : before.getUnitBoxes()){
+            if (box.getUnit() == after)
+                return true;
+        }
+
+        return false;
+    }
+
+    // x = expr where evaluating expr has no effect and can't throw
+    static boolean isRemovable(Unit u){
+        if (!Utils.isAssignmentStmt(u))
+            return false;
+
+        AssignStmt stmt = (AssignStmt) u;
+        if (!Utils.isLocal(stmt.getLeftOp()))
+            return false;
+
+        Value rhs = stmt.getRightOp();
+
+        if (Utils.isConstant(rhs) || Utils.isLocal(rhs) || Utils.isPhiExpr(rhs))
+            return true;
+
+        // integer division and remainder throw on a zero divisor
+        if (rhs instanceof BinopExpr){
+            BinopExpr expr = (BinopExpr) rhs;
+
+            if ((Utils.isDivExpr(expr) || Utils.isRemExpr(expr))
+                && (expr.getType() instanceof IntType || expr.getType() instanceof LongType))
+                return isNonZero(expr.getOp2());
+
+            return true;
+        }
+
+        if (Utils.isNegExpr(rhs) || rhs instanceof InstanceOfExpr)
+            return true;
+
+        // reference casts may throw a ClassCastException
+        if (Utils.isCastExpr(rhs)){
+            CastExpr expr = (CastExpr) rhs;
+            return expr.getCastType() instanceof PrimType
+                && expr.getOp().getType() instanceof PrimType;
+        }
+
+        return false;
+    }
+
+    // the default value of a field of the type
+    private static Value zeroOf(Type type){
+        if (type instanceof LongType)
+            return LongConstant.v(0);
+        if (type instanceof FloatType)
+            return FloatConstant.v(0);
+        if (type instanceof DoubleType)
+            return DoubleConstant.v(0);
+        if (type instanceof PrimType)
+            return IntConstant.v(0);
+
+        return NullConstant.v();
+    }
+
+    private static boolean isNonZero(Value v){
+        if (Utils.isIntConstant(v))
+            return Utils.extractIntValue(v) != 0;
+        if (Utils.isLongConstant(v))
+            return Utils.extractLongValue(v) != 0;
+
+        return false;
+    }
+
+    private ShimpleBody body;
+}
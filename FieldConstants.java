@@ -0,0 +1,256 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.tagkit.*;
+
+/*
+ * The constant values of static fields that are set once, for stp.cp to
+ * fold reading them
+ *
+ * A static field of a primitive type or String has a constant value when
+ *
+ *   it is final with a ConstantValue attribute, and nothing writes it, or
+ *   the only write is in its class initializer, setting it to a constant
+ *   before the initializer has run any other code
+ *
+ * and every method that may write it has been scanned: only the declaring
+ * class may write a final field, and only the classes of its nest a
+ * private one. Other fields may be written by classes that aren't loaded.
+ *
+ * Reading the field from its own class sees the value, except in the
+ * initializer itself, once the initializers of its superclasses and
+ * superinterfaces, which run first, can't have called into the class.
+ * Reading it from another class first initializes the declaring class, so
+ * it's only replaced when that initialization, its supertypes' included,
+ * has no effect besides setting the classes' own static fields.
+ *
+ * The values are computed from the jimple bodies before the workers start,
+ * and only read afterwards.
+ */
+public class FieldConstants {
+    FieldConstants(Collection<SootClass> classes){
+        Map<SootField, List<Unit>> writes = new HashMap<>();
+        for (SootClass c : classes){
+            for (SootMethod m : c.getMethods()){
+                if (!m.hasActiveBody())
+                    continue;
+
+                for (Unit u : m.getActiveBody().getUnits()){
+                    if (u instanceof AssignStmt && ((AssignStmt) u).getLeftOp() instanceof StaticFieldRef){
+                        SootField f = ((StaticFieldRef) ((AssignStmt) u).getLeftOp()).getField();
+                        writes.computeIfAbsent(f, k -> new ArrayList<>()).add(u);
+                    }
+                }
+            }
+        }
+
+        for (SootClass c : classes){
+            SootMethod clinit = c.getMethodByNameUnsafe(SootMethod.staticInitializerName);
+            Body init = clinit != null && clinit.hasActiveBody() ? clinit.getActiveBody() : null;
+
+            for (SootField f : c.getFields()){
+                if (!f.isStatic() || !isConstantType(f.getType()) || !areWritersLoaded(f))
+                    continue;
+
+                Constant value = valueOf(f, writes.getOrDefault(f, Collections.emptyList()), init);
+                if (value != null)
+                    values.put(f, value);
+            }
+
+            if (init == null || isQuiet(init, c))
+                quietInitializers.add(c);
+        }
+    }
+
+    // the constants published for the current batch of classes, or null
+    static FieldConstants current(){
+        return current;
+    }
+
+    static void analyze(Collection<SootClass> classes){
+        current = new FieldConstants(classes);
+    }
+
+    // the value 'reader' sees reading 'f', null if it may see another
+    Constant valueAt(SootMethod reader, SootField f){
+        Constant value = values.get(f);
+        if (value == null)
+            return null;
+
+        SootClass declaring = f.getDeclaringClass();
+        if (reader.getDeclaringClass() == declaring)
+            return !reader.isStaticInitializer() && areSupertypesQuiet(declaring) ? value : null;
+
+        return quietInitializers.contains(declaring) && areSupertypesQuiet(declaring) ? value : null;
+    }
+
+    // replaces the reads of constant fields in 'body', returns how many
+    int substitute(Body body){
+        int replaced = 0;
+        for (Unit u : body.getUnits()){
+            if (!Utils.isAssignmentStmt(u) || !(((AssignStmt) u).getRightOp() instanceof StaticFieldRef))
+                continue;
+
+            Constant value = valueAt(body.getMethod(), ((StaticFieldRef) ((AssignStmt) u).getRightOp()).getField());
+            if (value != null){
+                ((AssignStmt) u).setRightOp(value);
+                ++replaced;
+            }
+        }
+
+        return replaced;
+    }
+
+    private static Constant valueOf(SootField f, List<Unit> writes, Body init){
+        if (writes.isEmpty())
+            return f.isFinal() ? constantValueOf(f) : null;
+
+        if (writes.size() > 1 || init == null || constantValueOf(f) != null)
+            return null;
+
+        // straight-line code before the write, which runs nothing else
+        Map<Value, Constant> locals = new HashMap<>();
+        for (Unit u : init.getUnits()){
+            if (u == writes.get(0)){
+                Value rhs = ((AssignStmt) u).getRightOp();
+                return rhs instanceof Constant ? (Constant) rhs : locals.get(rhs);
+            }
+
+            if (!u.fallsThrough() || u.branches() || !u.getBoxesPointingToThis().isEmpty()
+                || !isQuiet(u, f.getDeclaringClass()))
+                return null;
+
+            if (u instanceof AssignStmt && Utils.isLocal(((AssignStmt) u).getLeftOp())){
+                Value rhs = ((AssignStmt) u).getRightOp();
+                if (rhs instanceof Constant)
+                    locals.put(((AssignStmt) u).getLeftOp(), (Constant) rhs);
+                else
+                    locals.remove(((AssignStmt) u).getLeftOp());
+            }
+        }
+
+        // written by another method
+        return null;
+    }
+
+    // the value of the field's ConstantValue attribute, the JVM sets it
+    // before the initializer runs
+    private static Constant constantValueOf(SootField f){
+        for (Tag tag : f.getTags()){
+            if (tag instanceof ConstantValueTag)
+                return ((ConstantValueTag) tag).getConstant();
+        }
+
+        return null;
+    }
+
+    // initializing the superclasses and superinterfaces of 'c' runs no
+    // code besides quiet initializers
+    private boolean areSupertypesQuiet(SootClass c){
+        Deque<SootClass> work = new ArrayDeque<>();
+        Set<SootClass> seen = new HashSet<>();
+        work.add(c);
+
+        while (!work.isEmpty()){
+            SootClass s = work.poll();
+            if (s != c && !quietInitializers.contains(s) && !hasNoInitializer(s))
+                return false;
+
+            if (s.hasSuperclass() && seen.add(s.getSuperclass()))
+                work.add(s.getSuperclass());
+            for (SootClass i : s.getInterfaces()){
+                if (seen.add(i))
+                    work.add(i);
+            }
+        }
+
+        return true;
+    }
+
+    // java.lang.Object, or a library class known to have no initializer,
+    // i.e. resolved far enough to list its methods
+    private static boolean hasNoInitializer(SootClass c){
+        if (c.getName().equals("java.lang.Object"))
+            return true;
+
+        return !c.isPhantom() && c.resolvingLevel() >= SootClass.SIGNATURES
+            && c.getMethodByNameUnsafe(SootMethod.staticInitializerName) == null;
+    }
+
+    // every unit of the initializer is quiet
+    private static boolean isQuiet(Body init, SootClass c){
+        for (Unit u : init.getUnits()){
+            if (!isQuiet(u, c))
+                return false;
+        }
+
+        return true;
+    }
+
+    // 'u' can't throw, and affects nothing but locals and the static
+    // fields of 'c', so skipping it isn't observable
+    private static boolean isQuiet(Unit u, SootClass c){
+        if (u instanceof IdentityStmt || u instanceof NopStmt || u instanceof ReturnVoidStmt
+            || Utils.isGotoStmt(u) || Utils.isIfStmt(u))
+            return true;
+
+        if (!Utils.isAssignmentStmt(u))
+            return false;
+
+        AssignStmt stmt = (AssignStmt) u;
+        Value lhs = stmt.getLeftOp();
+        Value rhs = stmt.getRightOp();
+
+        if (lhs instanceof StaticFieldRef)
+            return isOwn(lhs, c) && (rhs instanceof Constant || Utils.isLocal(rhs));
+
+        return Utils.isLocal(lhs) && (DeadCodeEliminator.isRemovable(u) || isOwn(rhs, c));
+    }
+
+    private static boolean isOwn(Value v, SootClass c){
+        return v instanceof StaticFieldRef && ((StaticFieldRef) v).getField().getDeclaringClass() == c;
+    }
+
+    // javac keeps the values of these types in the constant pool
+    private static boolean isConstantType(Type type){
+        return type instanceof PrimType || type.toString().equals("java.lang.String");
+    }
+
+    // a final field is written by its class, a private one by its nest,
+    // and the classes of the nest are listed in its InnerClasses attribute
+    private static boolean areWritersLoaded(SootField f){
+        if (f.isFinal())
+            return true;
+        if (!f.isPrivate())
+            return false;
+
+        SootClass c = f.getDeclaringClass();
+        String top = topLevelName(c.getName());
+
+        for (Tag tag : c.getTags()){
+            if (!(tag instanceof InnerClassTag))
+                continue;
+
+            String inner = ((InnerClassTag) tag).getInnerClass().replace('/', '.');
+            if (!topLevelName(inner).equals(top))
+                continue;
+
+            SootClass nestmate = Scene.v().getSootClassUnsafe(inner, false);
+            if (nestmate == null || !nestmate.isApplicationClass())
+                return false;
+        }
+
+        return true;
+    }
+
+    private static String topLevelName(String name){
+        int dollar = name.indexOf('$');
+        return dollar < 0 ? name : name.substring(0, dollar);
+    }
+
+    private static volatile FieldConstants current;
+
+    private final Map<SootField, Constant> values = new HashMap<>();
+    private final Set<SootClass> quietInitializers = new HashSet<>();
+}
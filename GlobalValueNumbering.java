@@ -0,0 +1,309 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+import soot.toolkits.graph.*;
+
+/*
+ * Dominator-based global value numbering over a ShimpleBody
+ *
+ * Units are visited in reverse postorder of the exceptional unit graph, so
+ * the definitions dominating a unit are numbered before it. Blocks would
+ * be cheaper, but an exceptional edge may leave one before a definition in
+ * it has run.
+ *
+ * Every local gets the number of the value it holds: a copy the number of
+ * its source, an expression the number of its operator, type and operand
+ * numbers (sorted for commutative operators), and a phi the number its
+ * args all have, or that of an earlier phi in the same block with the same
+ * number on every edge.
+ *
+ * A local whose number a dominating local of the same type already holds
+ * is redundant, and its uses read that local instead. Its definition
+ * becomes a copy of the leader, left for DeadCodeEliminator unless a phi
+ * reads it. Operands made equal that way may fold, e.g. 'a - b' to 0 once
+ * 'b' is 'a', and the new constants are left for the propagator to carry
+ * further.
+ *
+ * Shimple turns phis into copies at the end of their predecessors, one
+ * after the other and without splitting edges, which is only right while
+ * no phi's local lives across another's copies. So phi args are left as
+ * they are, and a phi's local is never a leader: its copies would
+ * overwrite it while the uses it took over still need the old value.
+ *
+ * Only expressions that can't throw are numbered, anything read from a
+ * field, array or call gets a number of its own.
+ */
+public class GlobalValueNumbering {
+    GlobalValueNumbering(Body body){
+        this.body = (ShimpleBody) body;
+        this.units = body.getUnits();
+
+        // the graphs cost more than the numbering, without two expressions
+        // of the same operator and type nothing is computed twice
+        if (!hasRepeatedOperator())
+            return;
+
+        number();
+
+        if (!leaderOf.isEmpty())
+            rewrite();
+    }
+
+    // adds what this run reused and folded to 'metrics'
+    void record(MethodMetrics metrics){
+        metrics.expressionsReused += expressionsReused;
+        metrics.constantsFolded += constantsFolded;
+    }
+
+    private boolean hasRepeatedOperator(){
+        Set<List<Object>> seen = new HashSet<>();
+        for (Unit u : units){
+            if (!isNumbered(u))
+                continue;
+
+            Value rhs = ((AssignStmt) u).getRightOp();
+            if (!seen.add(Arrays.asList(rhs.getClass(), rhs.getType())))
+                return true;
+        }
+
+        return false;
+    }
+
+    private void number(){
+        ExceptionalUnitGraph graph = new ExceptionalUnitGraph(body);
+        dominators = new MHGDominatorsFinder<>(graph);
+
+        for (Unit u : reversePostorder(graph)){
+            if (!(u instanceof DefinitionStmt) || !Utils.isLocal(((DefinitionStmt) u).getLeftOp()))
+                continue;
+
+            Local local = (Local) ((DefinitionStmt) u).getLeftOp();
+            int number = numberOf(u);
+            numbers.put(local, number);
+            defOf.put(local, u);
+
+            // a constant is cheaper to read than any local holding it
+            if (!Utils.isConstant(((DefinitionStmt) u).getRightOp()))
+                findLeader(local, number, u);
+
+            holders.computeIfAbsent(number, k -> new ArrayList<>()).add(local);
+        }
+    }
+
+    // the first local with 'number' whose definition dominates 'u'
+    private void findLeader(Local local, int number, Unit u){
+        List<Local> candidates = holders.get(number);
+        if (candidates == null)
+            return;
+
+        for (Local candidate : candidates){
+            Unit def = defOf.get(candidate);
+            if (candidate.getType().equals(local.getType()) && !Shimple.isPhiNode(def)
+                && dominators.isDominatedBy(u, def)){
+                leaderOf.put(local, candidate);
+
+                if (!Utils.isLocal(((DefinitionStmt) u).getRightOp()))
+                    ++expressionsReused;
+                return;
+            }
+        }
+    }
+
+    private int numberOf(Unit u){
+        Value rhs = ((DefinitionStmt) u).getRightOp();
+
+        if (Utils.isLocal(rhs) && numbers.containsKey(rhs))
+            return numbers.get(rhs);
+
+        if (Utils.isConstant(rhs))
+            return numberOf(Arrays.asList(rhs));
+
+        if (Shimple.isPhiNode(u))
+            return numberOfPhi(u);
+
+        if (!isNumbered(u))
+            return nextNumber++;
+
+        List<Object> key = new ArrayList<>();
+        key.add(rhs.getClass());
+        key.add(rhs.getType());
+
+        if (Utils.isCastExpr(rhs))
+            key.add(((CastExpr) rhs).getCastType());
+        if (rhs instanceof InstanceOfExpr)
+            key.add(((InstanceOfExpr) rhs).getCheckType());
+
+        List<Integer> operands = new ArrayList<>();
+        for (ValueBox box : rhs.getUseBoxes()){
+            Integer operand = operandNumber(box.getValue());
+            if (operand == null)
+                return nextNumber++;
+
+            operands.add(operand);
+        }
+
+        // a + b is b + a
+        if (isCommutative(rhs))
+            Collections.sort(operands);
+
+        key.addAll(operands);
+        return numberOf(key);
+    }
+
+    // the number all args have, an earlier phi's of this block with the
+    // same numbers on every edge, or a new one
+    private int numberOfPhi(Unit u){
+        PhiExpr phiExpr = Shimple.getPhiExpr(u);
+        Local local = (Local) ((DefinitionStmt) u).getLeftOp();
+
+        Map<Unit, Integer> args = new HashMap<>();
+        Integer same = null;
+        boolean allSame = true;
+
+        for (int i = 0; i < phiExpr.getArgCount(); ++i){
+            Value v = phiExpr.getValue(i);
+            if (v == local)
+                continue;
+
+            // defined on a back edge, not numbered yet
+            Integer operand = operandNumber(v);
+            if (operand == null)
+                return nextNumber++;
+
+            args.put(phiExpr.getPred(i), operand);
+            if (same == null)
+                same = operand;
+            else if (!same.equals(operand))
+                allSame = false;
+        }
+
+        if (same != null && allSame)
+            return same;
+
+        return numberOf(Arrays.asList(PhiExpr.class, blockHeadOf(u), args));
+    }
+
+    private Integer operandNumber(Value v){
+        if (Utils.isConstant(v))
+            return numberOf(Arrays.asList(v));
+
+        return numbers.get(v);
+    }
+
+    private int numberOf(List<Object> key){
+        Integer number = table.get(key);
+        if (number == null){
+            number = nextNumber++;
+            table.put(key, number);
+        }
+
+        return number;
+    }
+
+    // uses of redundant locals read their leaders, and what that folds
+    private void rewrite(){
+        for (Map.Entry<Local, Local> entry : leaderOf.entrySet()){
+            Unit def = defOf.get(entry.getKey());
+            if (!Shimple.isPhiNode(def))
+                ((AssignStmt) def).setRightOp(entry.getValue());
+        }
+
+        for (Unit u : units){
+            if (Shimple.isPhiNode(u))
+                continue;
+
+            boolean changed = false;
+
+            for (ValueBox box : u.getUseBoxes()){
+                Local leader = leaderOf.get(box.getValue());
+                if (leader == null)
+                    continue;
+
+                box.setValue(leader);
+                changed = true;
+            }
+
+            if (!changed || !Utils.isAssignmentStmt(u) || !(((AssignStmt) u).getRightOp() instanceof BinopExpr))
+                continue;
+
+            // x - x, x ^ x
+            Value simpler = AlgebraicSimplifier.simplify((BinopExpr) ((AssignStmt) u).getRightOp());
+            if (simpler != null && Utils.isConstant(simpler)){
+                ((AssignStmt) u).setRightOp(simpler);
+                ++constantsFolded;
+            }
+        }
+    }
+
+    // the first phi of the run of phis 'u' is in, which heads its block
+    private Unit blockHeadOf(Unit u){
+        Unit head = u;
+        for (Unit p = units.getPredOf(u); p != null && Shimple.isPhiNode(p); p = units.getPredOf(p))
+            head = p;
+
+        return head;
+    }
+
+    // units reachable from the first one, each after its dominators
+    private List<Unit> reversePostorder(ExceptionalUnitGraph graph){
+        List<Unit> order = new ArrayList<>();
+        Unit entry = units.getFirst();
+        if (entry == null)
+            return order;
+
+        Set<Unit> visited = new HashSet<>();
+        Deque<Iterator<Unit>> stack = new ArrayDeque<>();
+        Deque<Unit> path = new ArrayDeque<>();
+
+        visited.add(entry);
+        path.push(entry);
+        stack.push(graph.getSuccsOf(entry).iterator());
+
+        while (!stack.isEmpty()){
+            Iterator<Unit> succs = stack.peek();
+            if (succs.hasNext()){
+                Unit next = succs.next();
+                if (visited.add(next)){
+                    path.push(next);
+                    stack.push(graph.getSuccsOf(next).iterator());
+                }
+            } else {
+                stack.pop();
+                order.add(path.pop());
+            }
+        }
+
+        Collections.reverse(order);
+        return order;
+    }
+
+    // x = expr where evaluating expr has no effect, can't throw and isn't
+    // simply a copy, a constant or a phi
+    private static boolean isNumbered(Unit u){
+        if (!DeadCodeEliminator.isRemovable(u) || Shimple.isPhiNode(u))
+            return false;
+
+        Value rhs = ((AssignStmt) u).getRightOp();
+        return !Utils.isLocal(rhs) && !Utils.isConstant(rhs);
+    }
+
+    private static boolean isCommutative(Value v){
+        return Utils.isAddExpr(v) || Utils.isMulExpr(v) || Utils.isAndExpr(v) || Utils.isOrExpr(v)
+            || Utils.isXorExpr(v) || Utils.isEqExpr(v) || Utils.isNeExpr(v);
+    }
+
+    private ShimpleBody body;
+    private UnitPatchingChain units;
+    private MHGDominatorsFinder<Unit> dominators;
+    private int nextNumber;
+    private int expressionsReused;
+    private int constantsFolded;
+
+    private final Map<List<Object>, Integer> table = new HashMap<>();
+    private final Map<Value, Integer> numbers = new HashMap<>();
+    private final Map<Local, Unit> defOf = new HashMap<>();
+    private final Map<Integer, List<Local>> holders = new HashMap<>();
+    private final Map<Local, Local> leaderOf = new HashMap<>();
+}
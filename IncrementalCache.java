@@ -0,0 +1,284 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/*
+ * Reuses the optimized class files of unchanged input classes
+ *
+ * Every class file under the input directory gets a key, the SHA-256 of
+ * the optimizer configuration, the optimizer's own class files, the name
+ * of the class, and the bytes of the class and of every input class it
+ * depends on. A class
+ * depends on the input classes named by its constant pool, transitively,
+ * since their methods may be inlined into it. In whole-program mode the
+ * constants passed to a method depend on its callers as well, so there
+ * every class depends on its whole connected component.
+ *
+ * restore() copies the cached output of every class whose key is in the
+ * cache and returns the classes that have to be analyzed again, with the
+ * classes they depend on so the result is the same as that of a full run.
+ * After Soot has written them, store() adds their output to the cache.
+ * Output classes Soot generates, e.g. 'A$lambda__1', belong to the input
+ * class their name starts with.
+ *
+ * An entry is the directory '<cache>/<key>', written under a temporary
+ * name and renamed once complete, so an interrupted run never leaves a
+ * partial entry behind.
+ */
+public class IncrementalCache {
+    IncrementalCache(File cacheDir, File inputDir, List<String> configuration, boolean wholeProgram) throws IOException {
+        this.cacheDir = cacheDir;
+
+        Map<String, byte[]> bytes = new HashMap<>();
+        for (Path file : classFiles(inputDir.toPath())){
+            byte[] content = Files.readAllBytes(file);
+            ClassReferences refs = new ClassReferences(content);
+            bytes.put(refs.name, content);
+            references.put(refs.name, refs.referenced);
+        }
+
+        for (Set<String> refs : references.values())
+            refs.retainAll(bytes.keySet());
+
+        // references are followed both ways in whole-program mode
+        if (wholeProgram){
+            for (Map.Entry<String, Set<String>> e : new ArrayList<>(references.entrySet())){
+                for (String referenced : e.getValue())
+                    references.get(referenced).add(e.getKey());
+            }
+        }
+
+        byte[] base = configurationDigest(configuration);
+        for (String name : bytes.keySet()){
+            // the classes of a component share their dependencies, not their key
+            MessageDigest digest = sha256();
+            digest.update(base);
+            digest.update(name.getBytes("UTF-8"));
+            for (String dependency : new TreeSet<>(closure(Collections.singleton(name)))){
+                digest.update(dependency.getBytes("UTF-8"));
+                digest.update(bytes.get(dependency));
+            }
+            keys.put(name, hex(digest.digest()));
+        }
+    }
+
+    // copies the cached classes to 'outputDir', returns the ones to analyze
+    Set<String> restore(File outputDir) throws IOException {
+        Set<String> stale = new TreeSet<>();
+
+        for (Map.Entry<String, String> e : keys.entrySet()){
+            File entry = new File(cacheDir, e.getValue());
+            if (entry.isDirectory())
+                copy(entry.toPath(), outputDir.toPath());
+            else
+                stale.add(e.getKey());
+        }
+
+        System.out.println(String.format("[cache] %d of %d classes unchanged",
+            keys.size() - stale.size(), keys.size()));
+
+        return closure(stale);
+    }
+
+    // caches the output Soot wrote for the classes of the last restore()
+    void store(File outputDir, Set<String> analyzed) throws IOException {
+        Map<String, List<Path>> outputs = new HashMap<>();
+        for (Path file : classFiles(outputDir.toPath())){
+            String owner = ownerOf(outputDir.toPath().relativize(file));
+            if (owner != null && analyzed.contains(owner))
+                outputs.computeIfAbsent(owner, k -> new ArrayList<>()).add(file);
+        }
+
+        for (Map.Entry<String, List<Path>> e : outputs.entrySet()){
+            Path entry = cacheDir.toPath().resolve(keys.get(e.getKey()));
+            if (Files.isDirectory(entry))
+                continue;
+
+            Path tmp = Files.createTempDirectory(Files.createDirectories(cacheDir.toPath()), "tmp");
+            for (Path file : e.getValue()){
+                Path target = tmp.resolve(outputDir.toPath().relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target);
+            }
+
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex){
+                // another run stored the same entry first
+                delete(tmp);
+            }
+        }
+    }
+
+    // the classes and every input class they depend on
+    private Set<String> closure(Set<String> names){
+        Set<String> closure = new HashSet<>(names);
+        Deque<String> work = new ArrayDeque<>(names);
+
+        while (!work.isEmpty()){
+            for (String referenced : references.get(work.poll())){
+                if (closure.add(referenced))
+                    work.add(referenced);
+            }
+        }
+
+        return closure;
+    }
+
+    // the input class an output file was generated for, null if none
+    private String ownerOf(Path relative){
+        String name = relative.toString().replace(File.separatorChar, '.');
+        name = name.substring(0, name.length() - ".class".length());
+
+        while (!keys.containsKey(name)){
+            int dollar = name.lastIndexOf('$');
+            if (dollar < 0)
+                return null;
+            name = name.substring(0, dollar);
+        }
+
+        return name;
+    }
+
+    // the arguments and the optimizer's classes, a new optimizer invalidates everything
+    private static byte[] configurationDigest(List<String> configuration) throws IOException {
+        MessageDigest digest = sha256();
+        for (String arg : configuration)
+            digest.update((arg + '\0').getBytes("UTF-8"));
+
+        CodeSource source = IncrementalCache.class.getProtectionDomain().getCodeSource();
+        if (source == null)
+            throw new IOException("Couldn't locate the optimizer's classes");
+
+        try {
+            Path code = Paths.get(source.getLocation().toURI());
+            if (Files.isDirectory(code)){
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(code, "*.class")){
+                    List<Path> sorted = new ArrayList<>();
+                    for (Path file : files)
+                        sorted.add(file);
+                    Collections.sort(sorted);
+
+                    for (Path file : sorted){
+                        digest.update(file.getFileName().toString().getBytes("UTF-8"));
+                        digest.update(Files.readAllBytes(file));
+                    }
+                }
+            } else {
+                digest.update(Files.readAllBytes(code));
+            }
+        } catch (java.net.URISyntaxException e){
+            throw new IOException("Couldn't locate the optimizer's classes", e);
+        }
+
+        return digest.digest();
+    }
+
+    private static List<Path> classFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return files;
+
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attrs){
+                if (file.toString().endsWith(".class"))
+                    files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return files;
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        for (Path file : classFiles(from)){
+            Path target = to.resolve(from.relativize(file).toString());
+            Files.createDirectories(target.getParent());
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (java.util.stream.Stream<Path> walk = Files.walk(dir)){
+            walk.forEach(paths::add);
+        }
+
+        // children before their directories
+        Collections.reverse(paths);
+        for (Path path : paths)
+            Files.deleteIfExists(path);
+    }
+
+    private static MessageDigest sha256(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes){
+        StringBuilder s = new StringBuilder();
+        for (byte b : bytes)
+            s.append(String.format("%02x", b));
+        return s.toString();
+    }
+
+    /*
+     * The name of a class file and the classes its constant pool refers to
+     */
+    private static final class ClassReferences {
+        ClassReferences(byte[] content) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            if (in.readInt() != 0xCAFEBABE)
+                throw new IOException("Not a class file");
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classes = new int[count];
+
+            for (int i = 1; i < count; ++i){
+                int tag = in.readUnsignedByte();
+                switch (tag){
+                    case 1: utf8[i] = in.readUTF(); break;
+                    case 7: classes[i] = in.readUnsignedShort(); break;
+                    case 8: case 16: case 19: case 20: in.skipBytes(2); break;
+                    case 15: in.skipBytes(3); break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: in.skipBytes(4); break;
+                    // longs and doubles take two entries
+                    case 5: case 6: in.skipBytes(8); ++i; break;
+                    default: throw new IOException("Unknown constant pool tag " + tag);
+                }
+            }
+
+            in.readUnsignedShort();
+            int self = in.readUnsignedShort();
+            name = internalToName(utf8[classes[self]]);
+
+            for (int i = 1; i < count; ++i){
+                if (classes[i] != 0 && i != self)
+                    referenced.add(internalToName(utf8[classes[i]]));
+            }
+        }
+
+        // 'a/B' and '[[La/B;' are both 'a.B'
+        private static String internalToName(String internal){
+            String name = internal.replaceFirst("^\\[+", "");
+            if (name.startsWith("L") && name.endsWith(";"))
+                name = name.substring(1, name.length() - 1);
+            return name.replace('/', '.');
+        }
+
+        final String name;
+        final Set<String> referenced = new HashSet<>();
+    }
+
+    private final File cacheDir;
+    private final Map<String, Set<String>> references = new HashMap<>();
+    private final Map<String, String> keys = new TreeMap<>();
+}
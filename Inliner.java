@@ -0,0 +1,304 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import soot.*;
+import soot.jimple.*;
+import soot.jimple.toolkits.invoke.AccessManager;
+import soot.jimple.toolkits.scalar.LocalNameStandardizer;
+import soot.shimple.*;
+import soot.tagkit.*;
+
+/*
+ * Inlines calls to small static and private methods
+ *
+ * Only calls that can't dispatch anywhere else are inlined: static calls
+ * and calls of a private method on 'this'. A callee is copied when it has
+ * at most 'max-size' units, the body stays under 'max-body-size' units,
+ * and calls within inlined code are inlined up to 'max-depth' levels. A
+ * method is never inlined into a copy of itself, so recursive calls stay
+ * calls once they come around.
+ *
+ * Methods of other classes are only inlined from the same package, when
+ * every member they access is accessible from the caller and inlining
+ * can't skip the initialization of their class. Inlined units carry the
+ * line number of the call site.
+ *
+ * The copies are made on the jimple form of the body, which is then built
+ * back into SSA form and handed to SimpleConstPropagator, so constant
+ * arguments reach the inlined code before stp.cp runs.
+ *
+ * What is copied is the callee as it was loaded, built again from its
+ * method source, rather than its active body. Bodies are optimized and
+ * turned into baf in whatever order Soot processes the classes, so the
+ * active body would make the result depend on that order.
+ */
+public class Inliner extends BodyTransformer {
+    @Override
+    protected void internalTransform(Body body, String phaseName, Map<String, String> options){
+        ShimpleBody sBody = (ShimpleBody) body;
+        int maxSize = PhaseOptions.getInt(options, "max-size");
+        int maxDepth = PhaseOptions.getInt(options, "max-depth");
+        int maxBodySize = PhaseOptions.getInt(options, "max-body-size");
+
+        // leave the SSA form alone unless there is something to inline
+        boolean found = false;
+        for (Unit u : sBody.getUnits()){
+            if (calleeOf(sBody, (Stmt) u, Collections.singletonList(body.getMethod()), maxSize) != null){
+                found = true;
+                break;
+            }
+        }
+
+        if (!found || maxDepth <= 0)
+            return;
+
+        JimpleBody jBody = sBody.toJimpleBody();
+        int inlined = inline(jBody, maxSize, maxDepth, maxBodySize);
+        if (inlined == 0)
+            return;
+
+        // the copied locals keep their names, and building SSA form
+        // tells locals apart by name
+        LocalNameStandardizer.v().transform(jBody);
+
+        long start = System.nanoTime();
+        sBody.getUnits().getNonPatchingChain().clear();
+        sBody.getTraps().clear();
+        sBody.getLocals().clear();
+        sBody.importBodyContentsFrom(jBody);
+        sBody.rebuild();
+
+        MethodMetrics metrics = OptimizationMetrics.of(body.getMethod());
+        if (metrics != null)
+            metrics.shimpleNanos += System.nanoTime() - start;
+
+        // constant arguments into the inlined code
+        SimpleConstPropagator propagator = new SimpleConstPropagator(sBody);
+        if (metrics != null)
+            propagator.record(metrics);
+
+        System.out.println("[" + phaseName + "] " + body.getMethod().getSignature()
+            + ": " + inlined + " call sites inlined");
+    }
+
+    private int inline(JimpleBody body, int maxSize, int maxDepth, int maxBodySize){
+        UnitPatchingChain units = body.getUnits();
+        Deque<Site> work = new ArrayDeque<>();
+
+        for (Unit u : units){
+            if (((Stmt) u).containsInvokeExpr())
+                work.add(new Site((Stmt) u, Collections.singletonList(body.getMethod())));
+        }
+
+        int inlined = 0;
+        while (!work.isEmpty()){
+            Site site = work.poll();
+
+            SootMethod callee = calleeOf(body, site.stmt, site.chain, maxSize);
+            if (callee == null)
+                continue;
+
+            Body calleeBody = originalBody(callee);
+            if (units.size() + calleeBody.getUnits().size() > maxBodySize)
+                continue;
+
+            List<Unit> copies = inlineSite(body, site.stmt, calleeBody);
+            ++inlined;
+
+            // calls within the copy, one level deeper
+            if (site.chain.size() >= maxDepth)
+                continue;
+
+            List<SootMethod> chain = new ArrayList<>(site.chain);
+            chain.add(callee);
+
+            for (Unit u : copies){
+                if (((Stmt) u).containsInvokeExpr())
+                    work.add(new Site((Stmt) u, chain));
+            }
+        }
+
+        return inlined;
+    }
+
+    // replaces the call by a copy of 'calleeBody' and returns the copy
+    private List<Unit> inlineSite(Body body, Stmt site, Body calleeBody){
+        UnitPatchingChain units = body.getUnits();
+        InvokeExpr expr = site.getInvokeExpr();
+        Unit exit = units.getSuccOf(site);
+        Tag line = site.getTag(LineNumberTag.NAME);
+
+        List<Unit> copies = new ArrayList<>();
+        Map<Unit, Unit> copyOf = new HashMap<>();
+        Map<Local, Local> localOf = new HashMap<>();
+
+        // cloning registers the clones with the units they point to,
+        // which other threads may be copying at the same time
+        synchronized (calleeBody){
+            for (Local l : calleeBody.getLocals()){
+                Local copy = (Local) l.clone();
+                body.getLocals().add(copy);
+                localOf.put(l, copy);
+            }
+
+            for (Unit u : calleeBody.getUnits()){
+                Unit copy;
+
+                // parameters and this are assigned the arguments, returns
+                // assign the result and jump to what follows the call
+                if (u instanceof IdentityStmt && !(((IdentityStmt) u).getRightOp() instanceof CaughtExceptionRef)){
+                    IdentityStmt stmt = (IdentityStmt) u;
+                    Value value = stmt.getRightOp() instanceof ParameterRef
+                        ? expr.getArg(((ParameterRef) stmt.getRightOp()).getIndex())
+                        : ((InstanceInvokeExpr) expr).getBase();
+                    copy = Jimple.v().newAssignStmt(stmt.getLeftOp(), value);
+                } else if (Utils.isReturnStmt(u) && Utils.isAssignmentStmt(site)){
+                    Unit result = Jimple.v().newAssignStmt(((AssignStmt) site).getLeftOp(), ((ReturnStmt) u).getOp());
+                    if (line != null)
+                        result.addTag(line);
+
+                    copies.add(result);
+                    copyOf.put(u, result);
+                    copy = Jimple.v().newGotoStmt(exit);
+                } else if (Utils.isReturnStmt(u) || u instanceof ReturnVoidStmt){
+                    copy = Jimple.v().newGotoStmt(exit);
+                } else {
+                    copy = (Unit) u.clone();
+                }
+
+                if (line != null)
+                    copy.addTag(line);
+
+                copies.add(copy);
+                copyOf.putIfAbsent(u, copy);
+            }
+
+            for (Unit copy : copies){
+                for (ValueBox box : copy.getUseAndDefBoxes()){
+                    Local l = localOf.get(box.getValue());
+                    if (l != null)
+                        box.setValue(l);
+                }
+
+                for (UnitBox box : copy.getUnitBoxes()){
+                    Unit target = copyOf.get(box.getUnit());
+                    if (target != null)
+                        box.setUnit(target);
+                }
+            }
+
+            // the callee's handlers go first, they are the innermost ones
+            Trap previous = null;
+            for (Trap trap : calleeBody.getTraps()){
+                Trap copy = Jimple.v().newTrap(trap.getException(), copyOf.get(trap.getBeginUnit()),
+                    copyOf.get(trap.getEndUnit()), copyOf.get(trap.getHandlerUnit()));
+
+                if (previous == null)
+                    body.getTraps().addFirst(copy);
+                else
+                    body.getTraps().insertAfter(copy, previous);
+
+                previous = copy;
+            }
+        }
+
+        // jumps to the call now enter the copy, traps covering it cover the copy
+        units.insertAfter(copies, site);
+        units.remove(site);
+
+        return copies;
+    }
+
+    // forgets the callees seen so far, their classes are about to be replaced
+    void clear(){
+        originals.clear();
+    }
+
+    // the jimple body 'm' was loaded with, null if Soot dropped its source,
+    // i.e. without '-no-drop-bodies-after-load'
+    private Body originalBody(SootMethod m){
+        Body original = originals.get(m);
+        if (original != null)
+            return original;
+
+        // method sources aren't thread safe, retrieveActiveBody locks 'm' as well
+        synchronized (m){
+            original = originals.get(m);
+            if (original == null){
+                MethodSource source = m.getSource();
+                if (source == null)
+                    return null;
+
+                original = source.getBody(m, "jb");
+                if (original != null)
+                    originals.put(m, original);
+            }
+        }
+
+        return original;
+    }
+
+    // the method 'stmt' can be replaced by, null if it can't be inlined
+    private SootMethod calleeOf(Body body, Stmt stmt, List<SootMethod> chain, int maxSize){
+        if (!stmt.containsInvokeExpr())
+            return null;
+
+        InvokeExpr expr = stmt.getInvokeExpr();
+        SootMethod callee = expr.getMethod();
+
+        // private methods on anything but 'this' would have to check for null
+        if (!(expr instanceof StaticInvokeExpr)){
+            if (!callee.isPrivate() || !(expr instanceof InstanceInvokeExpr)
+                || body.getMethod().isStatic()
+                || ((InstanceInvokeExpr) expr).getBase() != body.getThisLocal())
+                return null;
+        }
+
+        if (!callee.isConcrete() || callee.isSynchronized() || callee.isConstructor()
+            || callee.isStaticInitializer() || chain.contains(callee))
+            return null;
+
+        SootClass declaringClass = callee.getDeclaringClass();
+        if (!declaringClass.isApplicationClass())
+            return null;
+
+        Body calleeBody = originalBody(callee);
+        if (calleeBody == null || calleeBody.getUnits().size() > maxSize)
+            return null;
+
+        // a method of the caller's class is accessible and its class initialized
+        SootClass caller = body.getMethod().getDeclaringClass();
+        if (declaringClass == caller)
+            return callee;
+
+        if (!declaringClass.getPackageName().equals(caller.getPackageName()))
+            return null;
+
+        for (SootClass c = declaringClass; c != null; c = c.hasSuperclass() ? c.getSuperclass() : null){
+            if (c.declaresMethod(SootMethod.staticInitializerName, Collections.emptyList(), VoidType.v()))
+                return null;
+        }
+
+        synchronized (calleeBody){
+            for (Unit u : calleeBody.getUnits()){
+                if (!AccessManager.isAccessLegal(body.getMethod(), (Stmt) u))
+                    return null;
+            }
+        }
+
+        return callee;
+    }
+
+    // a call and the methods it has been inlined through
+    private static final class Site {
+        Site(Stmt stmt, List<SootMethod> chain){
+            this.stmt = stmt;
+            this.chain = chain;
+        }
+
+        final Stmt stmt;
+        final List<SootMethod> chain;
+    }
+
+    private final Map<SootMethod, Body> originals = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,47 @@
+import java.util.BitSet;
+
+/*
+ * FIFO worklist over the numbers 0..n-1 that holds each number at most
+ * once, adding a number that is already queued is a no-op
+ */
+public class IntWorklist {
+    IntWorklist(int capacity){
+        queue = new int[Math.max(capacity, 1)];
+        queued = new BitSet(capacity);
+    }
+
+    // returns false if 'item' was already queued
+    public boolean add(int item){
+        if (queued.get(item))
+            return false;
+
+        queued.set(item);
+        queue[tail] = item;
+        tail = (tail + 1) % queue.length;
+        ++size;
+        return true;
+    }
+
+    public int poll(){
+        int item = queue[head];
+        head = (head + 1) % queue.length;
+        --size;
+
+        queued.clear(item);
+        return item;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    private final int[] queue;
+    private final BitSet queued;
+    private int head;
+    private int tail;
+    private int size;
+}
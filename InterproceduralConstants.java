@@ -0,0 +1,39 @@
+import java.util.*;
+
+import soot.*;
+
+/*
+ * Computes the method summaries over the call graph of the whole program,
+ * for AnalysisTransformer to fold the constants returned by and passed to
+ * static and private methods. Bodies are only transformed by the body
+ * packs that run afterwards, possibly on several threads, and read the
+ * summaries from there.
+ */
+public class InterproceduralConstants extends SceneTransformer {
+    @Override
+    protected void internalTransform(String phaseName, Map<String, String> options){
+        List<SootMethod> methods = new ArrayList<>();
+        for (SootClass c : Scene.v().getApplicationClasses()){
+            for (SootMethod m : c.getMethods()){
+                if (m.isConcrete())
+                    methods.add(m);
+            }
+        }
+
+        MethodSummaries result = new MethodSummaries(Scene.v().getCallGraph(), methods);
+
+        System.out.println("[" + phaseName + "] " + result.methodCount() + " methods, "
+            + result.analysisCount() + " analyses, "
+            + result.constantReturnCount() + " constant returns, "
+            + result.constantParameterCount() + " constant parameters");
+
+        summaries = result;
+    }
+
+    // null unless the whole program has been analyzed
+    static MethodSummaries summaries(){
+        return summaries;
+    }
+
+    private static volatile MethodSummaries summaries;
+}
@@ -0,0 +1,139 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.zip.*;
+
+/*
+ * Optimizes the classes of a jar into another jar, a batch at a time
+ *
+ * The entries are read in jar order. Classes are collected into batches of
+ * 'batchSize' and handed to BatchOptimizer, and whatever it returns is
+ * written to the output jar right away, before the next batch is loaded.
+ * Every other entry is copied as it is, except the signature files, which
+ * no longer match the optimized classes. Classes of other batches are
+ * read from the input jar when a batch refers to them, but only down to
+ * their signatures, and leave the Scene again with the batch, so the heap
+ * holds one batch at a time however large the jar is.
+ *
+ * A batch Soot fails on is written unoptimized, with a warning.
+ */
+public class JarOptimizer {
+    JarOptimizer(List<String> sootArgs, String classPath, AnalysisTransformer analysisTransformer,
+                 File inJar, File outJar, int batchSize){
+        this.sootArgs = sootArgs;
+        this.classPath = classPath;
+        this.analysisTransformer = analysisTransformer;
+        this.inJar = inJar;
+        this.outJar = outJar;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    void run() throws IOException {
+        long start = System.nanoTime();
+
+        try (ZipFile in = new ZipFile(inJar);
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outJar)))){
+            Set<String> classNames = new HashSet<>();
+            for (ZipEntry entry : Collections.list(in.entries())){
+                if (isClass(entry))
+                    classNames.add(entry.getName().substring(0, entry.getName().length() - ".class".length()).replace('/', '.'));
+            }
+
+            BatchOptimizer optimizer = new BatchOptimizer(sootArgs, classPath + File.pathSeparator + inJar,
+                analysisTransformer, classNames);
+
+            Set<String> written = new HashSet<>();
+            List<byte[]> batch = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(in.entries())){
+                if (entry.isDirectory() || isSignature(entry.getName()))
+                    continue;
+
+                byte[] bytes = read(in, entry);
+                if (isClass(entry)){
+                    batch.add(bytes);
+                    if (batch.size() == batchSize)
+                        flush(optimizer, batch, out, written);
+                } else {
+                    write(out, entry.getName(), bytes, written);
+                }
+            }
+
+            flush(optimizer, batch, out, written);
+        }
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+
+        System.out.println(String.format("[jar] optimized %d classes in %d batches into '%s' in %.1f ms, peak heap %.1f MB",
+            classes, batches, outJar, (System.nanoTime() - start) / 1e6, peak / (1024.0 * 1024.0)));
+    }
+
+    private void flush(BatchOptimizer optimizer, List<byte[]> batch, ZipOutputStream out, Set<String> written)
+            throws IOException {
+        if (batch.isEmpty())
+            return;
+
+        Map<String, byte[]> optimized;
+        try {
+            optimized = optimizer.optimize(batch);
+        } catch (IOException | RuntimeException e){
+            System.err.println("[jar] couldn't optimize a batch, writing it unchanged: " + e);
+            optimized = new TreeMap<>();
+            for (byte[] bytes : batch)
+                optimized.put(BatchOptimizer.className(bytes), bytes);
+        }
+
+        for (Map.Entry<String, byte[]> e : optimized.entrySet())
+            write(out, e.getKey().replace('.', '/') + ".class", e.getValue(), written);
+
+        classes += batch.size();
+        ++batches;
+        batch.clear();
+    }
+
+    private static void write(ZipOutputStream out, String name, byte[] bytes, Set<String> written) throws IOException {
+        if (!written.add(name)){
+            System.err.println("[jar] duplicate entry '" + name + "' skipped");
+            return;
+        }
+
+        out.putNextEntry(new ZipEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static byte[] read(ZipFile in, ZipEntry entry) throws IOException {
+        try (InputStream stream = in.getInputStream(entry)){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer))
+                bytes.write(buffer, 0, n);
+            return bytes.toByteArray();
+        }
+    }
+
+    // classes Soot loads, multi-release versions and module descriptors are copied
+    private static boolean isClass(ZipEntry entry){
+        String name = entry.getName();
+        return name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class");
+    }
+
+    private static boolean isSignature(String name){
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+            return false;
+
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+
+    private final List<String> sootArgs;
+    private final String classPath;
+    private final AnalysisTransformer analysisTransformer;
+    private final File inJar;
+    private final File outJar;
+    private final int batchSize;
+    private int classes;
+    private int batches;
+}
@@ -0,0 +1,416 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+import soot.shimple.toolkits.scalar.*;
+import soot.toolkits.graph.*;
+import soot.toolkits.scalar.*;
+
+/*
+ * Replaces loops without side effects by the values they leave behind
+ *
+ *   i = Phi(0, i')                  x = Phi(x0, 2)
+ *   if i >= 500000000 goto exit     =>   x = 2
+ *   i' = i + 1                           goto exit
+ *   goto header
+ *
+ * The loop may only contain phis, branches and statements that can't throw
+ * and have no effect, no inner loop may be left in it, and its header has
+ * to be phis followed by the only exit test, comparing an int induction
+ * variable (i = Phi(c0, i + c)) with a constant. That gives the trip count
+ * k, which also proves the loop ends.
+ *
+ * The header phis used after the loop get the value they hold when the
+ * test fails: c0 + k * c for induction variables (wrapping like the loop
+ * would), the back edge value for values the loop doesn't change after the
+ * first iteration, the entry value if the loop never runs. Loops whose
+ * results are never used are removed altogether.
+ */
+public class LoopEliminator extends BodyTransformer {
+    @Override
+    protected void internalTransform(Body body, String phaseName, Map<String, String> options){
+        ShimpleBody sBody = (ShimpleBody) body;
+
+        boolean changed = true;
+        boolean eliminated = false;
+
+        // every elimination changes the graph, so the loops are found again
+        while (changed){
+            changed = false;
+
+            ExceptionalUnitGraph graph = new ExceptionalUnitGraph(sBody);
+            NaturalLoops loops = new NaturalLoops(graph);
+            ShimpleLocalDefs localDefs = new ShimpleLocalDefs(sBody);
+
+            // inner loops first, the loop around them may be empty without them
+            List<Unit> headers = loops.headers();
+            Collections.reverse(headers);
+
+            for (Unit header : headers){
+                List<Unit> assignments = eliminate(sBody, graph, loops, localDefs, header);
+                if (assignments == null)
+                    continue;
+
+                System.out.println("[" + phaseName + "] " + body.getMethod().getSignature()
+                    + ": loop at '" + header + "' replaced by "
+                    + assignments.size() + " assignments");
+
+                changed = true;
+                eliminated = true;
+                break;
+            }
+        }
+
+        // the loop's inputs may be dead now, and the goto to the exit redundant
+        if (eliminated){
+            new DeadCodeEliminator(body);
+            new CfgSimplifier(body);
+        }
+    }
+
+    // replaces the loop, returns the assignments standing in for it or null
+    private List<Unit> eliminate(ShimpleBody body, ExceptionalUnitGraph graph, NaturalLoops loops,
+        LocalDefs localDefs, Unit header){
+
+        UnitPatchingChain units = body.getUnits();
+        Set<Unit> loop = loops.loopAt(header);
+
+        Unit entry = loops.entryOf(header);
+        if (entry == null || !isFreeOfEffects(body, loop) || hasInnerCycle(graph, loop, header))
+            return null;
+
+        // phis, then the exit test
+        List<Unit> phis = new ArrayList<>();
+        Unit u = header;
+        while (Shimple.isPhiNode(u)){
+            if (Shimple.getPhiExpr(u).getArgCount() != 2)
+                return null;
+
+            phis.add(u);
+            u = units.getSuccOf(u);
+        }
+
+        if (!Utils.isIfStmt(u))
+            return null;
+
+        IfStmt test = (IfStmt) u;
+        Unit exit;
+        boolean exitWhenTrue;
+
+        if (!loop.contains(test.getTarget()) && loop.contains(units.getSuccOf(test))){
+            exit = test.getTarget();
+            exitWhenTrue = true;
+        } else if (loop.contains(test.getTarget()) && !loop.contains(units.getSuccOf(test))){
+            exit = units.getSuccOf(test);
+            exitWhenTrue = false;
+        } else {
+            return null;
+        }
+
+        // no other way out
+        for (Unit w : loop){
+            for (Unit succ : graph.getUnexceptionalSuccsOf(w)){
+                if (w != test && !loop.contains(succ))
+                    return null;
+            }
+        }
+
+        long trips = tripCount(test, exitWhenTrue, phis, entry, localDefs);
+        if (trips < 0)
+            return null;
+
+        // the header phis read after the loop, nothing else defined in it may be
+        List<Unit> assignments = new ArrayList<>();
+        Set<Local> assigned = new HashSet<>();
+
+        for (Unit w : units){
+            if (loop.contains(w))
+                continue;
+
+            for (ValueBox box : w.getUseBoxes()){
+                if (!Utils.isLocal(box.getValue()))
+                    continue;
+
+                Local local = (Local) box.getValue();
+                Unit def = definitionOf(local, localDefs);
+                if (def == null || !loop.contains(def) || assigned.contains(local))
+                    continue;
+
+                Value value = phis.contains(def)
+                    ? exitValue(def, trips, test, entry, loop, localDefs)
+                    : null;
+
+                if (value == null)
+                    return null;
+
+                assignments.add(Jimple.v().newAssignStmt(local, value));
+                assigned.add(local);
+            }
+        }
+
+        replace(body, loop, header, entry, test, exit, assignments);
+        return assignments;
+    }
+
+    // phis, gotos, ifs and statements that can't throw, with no trap
+    // starting, ending or handling inside the loop
+    private boolean isFreeOfEffects(ShimpleBody body, Set<Unit> loop){
+        for (Unit u : loop){
+            if (!Shimple.isPhiNode(u) && !DeadCodeEliminator.isRemovable(u)
+                && !Utils.isGotoStmt(u) && !Utils.isIfStmt(u) && !(u instanceof NopStmt))
+                return false;
+        }
+
+        for (Trap trap : body.getTraps()){
+            if (loop.contains(trap.getBeginUnit()) || loop.contains(trap.getEndUnit())
+                || loop.contains(trap.getHandlerUnit()))
+                return false;
+        }
+
+        return true;
+    }
+
+    // a cycle that doesn't pass the header is an inner loop, which is still
+    // there because its trip count is unknown, so it may never end
+    private boolean hasInnerCycle(UnitGraph graph, Set<Unit> loop, Unit header){
+        Set<Unit> done = new HashSet<>();
+        Set<Unit> onPath = new HashSet<>();
+
+        for (Unit root : loop){
+            if (root == header || done.contains(root))
+                continue;
+
+            Deque<Iterator<Unit>> stack = new ArrayDeque<>();
+            Deque<Unit> path = new ArrayDeque<>();
+            path.push(root);
+            onPath.add(root);
+            stack.push(graph.getSuccsOf(root).iterator());
+
+            while (!stack.isEmpty()){
+                Iterator<Unit> succs = stack.peek();
+                if (!succs.hasNext()){
+                    stack.pop();
+                    Unit u = path.pop();
+                    onPath.remove(u);
+                    done.add(u);
+                    continue;
+                }
+
+                Unit next = succs.next();
+                if (next == header || !loop.contains(next) || done.contains(next))
+                    continue;
+                if (onPath.contains(next))
+                    return true;
+
+                path.push(next);
+                onPath.add(next);
+                stack.push(graph.getSuccsOf(next).iterator());
+            }
+        }
+
+        return false;
+    }
+
+    // iterations before the test first fails, -1 if unknown or the
+    // induction variable would wrap around first
+    private long tripCount(IfStmt test, boolean exitWhenTrue, List<Unit> phis,
+        Unit entry, LocalDefs localDefs){
+
+        ConditionExpr cond = (ConditionExpr) test.getCondition();
+
+        Unit iv = null;
+        for (Unit phi : phis){
+            Local local = (Local) ((AssignStmt) phi).getLeftOp();
+            if (cond.getOp1() == local || cond.getOp2() == local)
+                iv = phi;
+        }
+
+        if (iv == null || !(((AssignStmt) iv).getLeftOp().getType() instanceof IntType))
+            return -1;
+
+        Value init = constantOf(Shimple.getPhiExpr(iv).getValue(entry), localDefs);
+        Long step = stepOf(iv, entry, localDefs);
+        Local local = (Local) ((AssignStmt) iv).getLeftOp();
+        Value bound = constantOf(cond.getOp1() == local ? cond.getOp2() : cond.getOp1(), localDefs);
+
+        if (!Utils.isIntConstant(init) || step == null || step == 0 || !Utils.isIntConstant(bound))
+            return -1;
+
+        long start = Utils.extractIntValue(init);
+        long last = step > 0
+            ? (Integer.MAX_VALUE - start) / step
+            : (start - Integer.MIN_VALUE) / -step;
+
+        if (!continues(cond, local, bound, start, exitWhenTrue))
+            return 0;
+
+        // == and != flip at most at the one iteration hitting the bound
+        if (Utils.isEqExpr(cond) || Utils.isNeExpr(cond)){
+            long distance = Utils.extractIntValue(bound) - start;
+            if (distance % step != 0 || distance / step < 0 || distance / step > last)
+                return -1;
+
+            long hit = distance / step;
+            if (hit > 0)
+                return hit;
+
+            return last >= 1 ? 1 : -1;
+        }
+
+        // the other conditions flip once along a sequence that doesn't wrap
+        long value = start + last * step;
+        if (continues(cond, local, bound, value, exitWhenTrue))
+            return -1;
+
+        long low = 0;
+        long high = last;
+        while (high - low > 1){
+            long mid = (low + high) >>> 1;
+
+            if (continues(cond, local, bound, start + mid * step, exitWhenTrue))
+                low = mid;
+            else
+                high = mid;
+        }
+
+        return high;
+    }
+
+    private boolean continues(ConditionExpr cond, Local iv, Value bound, long value, boolean exitWhenTrue){
+        Value constant = IntConstant.v((int) value);
+        Value left = cond.getOp1() == iv ? constant : bound;
+        Value right = cond.getOp2() == iv ? constant : bound;
+
+        Constant result = ConstantEvaluator.fold(cond, left, right);
+        return (Utils.extractIntValue(result) != 0) != exitWhenTrue;
+    }
+
+    // c for phis x = Phi(x0, x') with x' = x + c or x' = x - c
+    private Long stepOf(Unit phi, Unit entry, LocalDefs localDefs){
+        Local local = (Local) ((AssignStmt) phi).getLeftOp();
+        Value next = backValue(phi, entry);
+
+        if (!Utils.isLocal(next))
+            return null;
+
+        Unit def = definitionOf((Local) next, localDefs);
+        if (def == null || !Utils.isAssignmentStmt(def))
+            return null;
+
+        Value rhs = ((AssignStmt) def).getRightOp();
+        if (!Utils.isAddExpr(rhs) && !Utils.isSubExpr(rhs))
+            return null;
+
+        BinopExpr expr = (BinopExpr) rhs;
+        Value other;
+        if (expr.getOp1() == local)
+            other = expr.getOp2();
+        else if (expr.getOp2() == local && Utils.isAddExpr(rhs))
+            other = expr.getOp1();
+        else
+            return null;
+
+        long step;
+        if (Utils.isIntConstant(other))
+            step = Utils.extractIntValue(other);
+        else if (Utils.isLongConstant(other))
+            step = Utils.extractLongValue(other);
+        else
+            return null;
+
+        return Utils.isSubExpr(rhs) ? -step : step;
+    }
+
+    // the value of a header phi once the test fails after 'trips' iterations
+    private Value exitValue(Unit phi, long trips, IfStmt test, Unit entry,
+        Set<Unit> loop, LocalDefs localDefs){
+
+        Local local = (Local) ((AssignStmt) phi).getLeftOp();
+        Value initial = Shimple.getPhiExpr(phi).getValue(entry);
+        Value next = backValue(phi, entry);
+
+        if (trips == 0 || next == local)
+            return initial;
+
+        // the same value on every iteration after the first
+        if (Utils.isConstant(constantOf(next, localDefs)))
+            return constantOf(next, localDefs);
+
+        Unit def = definitionOf((Local) next, localDefs);
+        if (def != null && !loop.contains(def))
+            return next;
+
+        // x0 + trips * c, wrapping around like the additions would
+        Long step = stepOf(phi, entry, localDefs);
+        if (step == null)
+            return null;
+
+        initial = constantOf(initial, localDefs);
+
+        if (Utils.isIntConstant(initial) && local.getType() instanceof IntType)
+            return IntConstant.v(Utils.extractIntValue(initial) + (int) trips * step.intValue());
+
+        if (Utils.isLongConstant(initial) && local.getType() instanceof LongType)
+            return LongConstant.v(Utils.extractLongValue(initial) + trips * step);
+
+        return null;
+    }
+
+    private Value backValue(Unit phi, Unit entry){
+        PhiExpr phiExpr = Shimple.getPhiExpr(phi);
+        return phiExpr.getPred(0) == entry ? phiExpr.getValue(1) : phiExpr.getValue(0);
+    }
+
+    // c for c itself and for locals defined as x = c
+    private Value constantOf(Value v, LocalDefs localDefs){
+        if (!Utils.isLocal(v))
+            return v;
+
+        Unit def = definitionOf((Local) v, localDefs);
+        if (def != null && Utils.isAssignmentStmt(def)
+            && Utils.isConstant(((AssignStmt) def).getRightOp()))
+            return ((AssignStmt) def).getRightOp();
+
+        return v;
+    }
+
+    private Unit definitionOf(Local local, LocalDefs localDefs){
+        List<Unit> defs = localDefs.getDefsOf(local);
+        return defs.size() == 1 ? defs.get(0) : null;
+    }
+
+    // puts the assignments and a goto to the exit where the loop was
+    private void replace(ShimpleBody body, Set<Unit> loop, Unit header, Unit entry,
+        IfStmt test, Unit exit, List<Unit> assignments){
+
+        UnitPatchingChain units = body.getUnits();
+        Unit jump = Jimple.v().newGotoStmt(exit);
+
+        List<Unit> replacement = new ArrayList<>(assignments);
+        replacement.add(jump);
+        units.getNonPatchingChain().insertBefore(replacement, header);
+
+        if (Utils.isGotoStmt(entry))
+            ((GotoStmt) entry).setTarget(replacement.get(0));
+
+        // the exit is now reached from the new goto
+        for (Unit u = exit; u != null && Shimple.isPhiNode(u); u = units.getSuccOf(u)){
+            PhiExpr phiExpr = Shimple.getPhiExpr(u);
+            int index = phiExpr.getArgIndex(test);
+
+            if (index >= 0)
+                phiExpr.setPred(index, jump);
+        }
+
+        // nothing outside points into the loop any more
+        for (Unit u : loop){
+            for (UnitBox box : u.getUnitBoxes()){
+                if (box.getUnit() != null)
+                    box.getUnit().removeBoxPointingToThis(box);
+            }
+
+            units.getNonPatchingChain().remove(u);
+        }
+    }
+}
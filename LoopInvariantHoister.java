@@ -0,0 +1,151 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+import soot.shimple.toolkits.scalar.*;
+import soot.toolkits.graph.*;
+import soot.toolkits.scalar.*;
+
+/*
+ * Loop-invariant code motion
+ *
+ * A statement in a natural loop is invariant when each local it reads is
+ * defined outside the loop or by another invariant statement.
+ *
+ * Invariant statements that can't throw and have no effect besides their
+ * definition move to the end of the block that enters the loop. The body
+ * is in SSA form, so running them on iterations (or paths) that used not
+ * to can't clobber anything. Division, field and array reads, invokes and
+ * casts that may throw stay where they are.
+ */
+public class LoopInvariantHoister extends BodyTransformer {
+    @Override
+    protected void internalTransform(Body body, String phaseName, Map<String, String> options){
+        ShimpleBody sBody = (ShimpleBody) body;
+        ExceptionalUnitGraph graph = new ExceptionalUnitGraph(sBody);
+        NaturalLoops loops = new NaturalLoops(graph);
+        ShimpleLocalDefs localDefs = new ShimpleLocalDefs(sBody);
+
+        // outer loops first, what is invariant in both leaves both at once
+        List<Unit> headers = loops.headers();
+
+        for (Unit header : headers){
+            List<Unit> hoisted = hoist(sBody, loops, localDefs, header);
+            if (hoisted.isEmpty())
+                continue;
+
+            // hoisted out of the enclosed loops as well
+            for (Unit other : headers)
+                loops.loopAt(other).removeAll(hoisted);
+
+            System.out.println("[" + phaseName + "] " + body.getMethod().getSignature()
+                + ": " + hoisted.size() + " hoisted out of the loop at '" + header + "'");
+        }
+    }
+
+    private List<Unit> hoist(ShimpleBody body, NaturalLoops loops, LocalDefs localDefs, Unit header){
+        UnitPatchingChain units = body.getUnits();
+        Set<Unit> loop = loops.loopAt(header);
+
+        Unit entry = loops.entryOf(header);
+        if (entry == null)
+            return Collections.emptyList();
+
+        // a def is always marked before the statements using it
+        List<Unit> invariant = new ArrayList<>();
+        Set<Unit> marked = new HashSet<>();
+
+        boolean changed = true;
+        while (changed){
+            changed = false;
+
+            for (Unit u : units){
+                if (u == header || !loop.contains(u) || marked.contains(u)
+                    || !isHoistable(u, units))
+                    continue;
+
+                if (isInvariant(u, localDefs, loop, marked)){
+                    marked.add(u);
+                    invariant.add(u);
+                    changed = true;
+                }
+            }
+        }
+
+        if (invariant.isEmpty())
+            return invariant;
+
+        for (Unit u : invariant)
+            units.remove(u);
+
+        if (Utils.isGotoStmt(entry)){
+            // jumps to the goto have to run the hoisted code as well
+            units.insertBefore(invariant, entry);
+        } else {
+            // header's phis now come from the last hoisted statement,
+            // branches into the header (back edges) keep skipping it
+            units.getNonPatchingChain().insertBefore(invariant, header);
+
+            Unit last = invariant.get(invariant.size() - 1);
+            for (Unit u = header; u != null && Shimple.isPhiNode(u); u = units.getSuccOf(u)){
+                PhiExpr phiExpr = Shimple.getPhiExpr(u);
+                int index = phiExpr.getArgIndex(entry);
+
+                if (index >= 0)
+                    phiExpr.setPred(index, last);
+            }
+        }
+
+        return invariant;
+    }
+
+    private boolean isInvariant(Unit u, LocalDefs localDefs, Set<Unit> loop, Set<Unit> marked){
+        for (ValueBox box : u.getUseBoxes()){
+            if (!Utils.isLocal(box.getValue()))
+                continue;
+
+            for (Unit def : localDefs.getDefsOf((Local) box.getValue())){
+                if (loop.contains(def) && !marked.contains(def))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isHoistable(Unit u, UnitPatchingChain units){
+        if (Shimple.isPhiNode(u) || !DeadCodeEliminator.isRemovable(u))
+            return false;
+
+        // a block tail hands its phi args to its predecessor on removal,
+        // which is only the same edge if control falls into it, nothing
+        // jumps to it and the predecessor doesn't jump past it as well,
+        // nor moves out of the loop along with it
+        boolean phiPred = false;
+        boolean jumpTarget = false;
+        for (UnitBox box : u.getBoxesPointingToThis()){
+            if (box.isBranchTarget())
+                jumpTarget = true;
+            else
+                phiPred = true;
+        }
+
+        if (!phiPred)
+            return true;
+
+        Unit before = units.getPredOf(u);
+        if (jumpTarget || before == null || !before.fallsThrough())
+            return false;
+        if (!Shimple.isPhiNode(before) && DeadCodeEliminator.isRemovable(before))
+            return false;
+
+        Unit after = units.getSuccOf(u);
+        for (UnitBox box : before.getUnitBoxes()){
+            if (box.getUnit() == after)
+                return false;
+        }
+
+        return true;
+    }
+}
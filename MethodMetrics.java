@@ -0,0 +1,30 @@
+/*
+ * What optimizing one method cost and achieved, see OptimizationMetrics
+ *
+ * Times are wall nanoseconds. Bodies are optimized by a single thread at a
+ * time, so the fields need no synchronization; the report is only written
+ * once every body is done.
+ */
+public class MethodMetrics {
+    MethodMetrics(String signature){
+        this.signature = signature;
+    }
+
+    long totalNanos(){
+        return shimpleNanos + defUseNanos + propagationNanos;
+    }
+
+    final String signature;
+
+    // building SSA form, the def/use chains and graphs, and propagating
+    long shimpleNanos;
+    long defUseNanos;
+    long propagationNanos;
+
+    int units;
+    int worklistPops;
+    int constantsFolded;
+    int branchesFolded;
+    int expressionsReused;
+    int statementsRemoved;
+}
@@ -0,0 +1,319 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.jimple.toolkits.callgraph.*;
+import soot.shimple.*;
+
+/*
+ * Return value and parameter lattices of the application methods
+ *
+ * Every method is analyzed with SCCP, reading the summaries of its own
+ * parameters and of the methods it calls, until no summary changes. All of
+ * them start at TOP, so recursion and call sites SCCP finds unreachable
+ * don't pull a value down to BOTTOM.
+ *
+ * Parameters are only summarized for static and private methods whose
+ * callers are all explicit call sites in application code and that no
+ * method handle refers to. Results are only used at call sites that can't
+ * dispatch anywhere else: calls of static and private methods.
+ *
+ * A summary keeps the inputs its method was last analyzed with, the
+ * parameters and the results of its callees, and the method is only
+ * analyzed again once one of them has changed.
+ */
+public class MethodSummaries {
+    MethodSummaries(CallGraph callGraph, Collection<SootMethod> methods){
+        this.callGraph = callGraph;
+        this.summaries = new HashMap<>();
+
+        for (SootMethod m : methods)
+            summaries.put(m, new Summary(m));
+
+        this.handles = methodHandles();
+        for (Summary summary : summaries.values())
+            summary.parameters = initialParameters(summary.method);
+
+        solve();
+        complete = true;
+    }
+
+    // what SCCP may assume about parameter 'index' of 'm'
+    SparseConditionalConstPropagator.LatticeValue parameter(SootMethod m, int index){
+        Summary summary = summaries.get(m);
+        if (summary == null || summary.parameters == null)
+            return SparseConditionalConstPropagator.LatticeValue.BOTTOM;
+
+        return settled(summary.parameters[index]);
+    }
+
+    // what the call 'expr' returns
+    SparseConditionalConstPropagator.LatticeValue returned(InvokeExpr expr){
+        Summary summary = summaries.get(targetOf(expr));
+        if (summary == null)
+            return SparseConditionalConstPropagator.LatticeValue.BOTTOM;
+
+        return settled(summary.returned);
+    }
+
+    int methodCount(){
+        return summaries.size();
+    }
+
+    int analysisCount(){
+        return analyses;
+    }
+
+    int constantReturnCount(){
+        int count = 0;
+        for (Summary summary : summaries.values()){
+            if (summary.returned.isConstant())
+                ++count;
+        }
+
+        return count;
+    }
+
+    int constantParameterCount(){
+        int count = 0;
+        for (Summary summary : summaries.values()){
+            if (summary.parameters == null)
+                continue;
+
+            for (SparseConditionalConstPropagator.LatticeValue value : summary.parameters){
+                if (value.isConstant())
+                    ++count;
+            }
+        }
+
+        return count;
+    }
+
+    private void solve(){
+        Deque<Summary> work = new ArrayDeque<>(summaries.values());
+        Set<Summary> queued = new HashSet<>(work);
+
+        while (!work.isEmpty()){
+            Summary summary = work.poll();
+            queued.remove(summary);
+
+            // nothing it depends on changed since the last analysis
+            List<SparseConditionalConstPropagator.LatticeValue> inputs = inputsOf(summary);
+            if (inputs != null && inputs.equals(summary.inputs))
+                continue;
+
+            if (summary.body == null)
+                summary.body = Shimple.v().newBody(summary.method.retrieveActiveBody());
+
+            SparseConditionalConstPropagator sccp =
+                new SparseConditionalConstPropagator(summary.body, this, false);
+            summary.inputs = inputsOf(summary);
+            ++analyses;
+
+            // callers read the result
+            SparseConditionalConstPropagator.LatticeValue returned = sccp.returnValue();
+            if (!returned.equals(summary.returned)){
+                summary.returned = returned;
+
+                for (Iterator<Edge> it = callGraph.edgesInto(summary.method); it.hasNext();)
+                    enqueue(summaries.get(it.next().src()), work, queued);
+            }
+
+            // callees read the arguments
+            Map<SootMethod, SparseConditionalConstPropagator.LatticeValue[]> passed =
+                argumentsPassed(summary, sccp);
+            Set<SootMethod> callees = new HashSet<>(summary.passed.keySet());
+            callees.addAll(passed.keySet());
+            summary.passed = passed;
+
+            for (SootMethod callee : callees){
+                if (updateParameters(summaries.get(callee)))
+                    enqueue(summaries.get(callee), work, queued);
+            }
+        }
+    }
+
+    private void enqueue(Summary summary, Deque<Summary> work, Set<Summary> queued){
+        if (summary != null && queued.add(summary))
+            work.add(summary);
+    }
+
+    // the parameters and the results of the callees, null before the
+    // body has been built
+    private List<SparseConditionalConstPropagator.LatticeValue> inputsOf(Summary summary){
+        if (summary.body == null)
+            return null;
+
+        List<SparseConditionalConstPropagator.LatticeValue> inputs = new ArrayList<>();
+        if (summary.parameters != null)
+            inputs.addAll(Arrays.asList(summary.parameters));
+
+        for (Unit u : summary.body.getUnits()){
+            Stmt stmt = (Stmt) u;
+            if (!stmt.containsInvokeExpr())
+                continue;
+
+            Summary callee = summaries.get(targetOf(stmt.getInvokeExpr()));
+            if (callee != null)
+                inputs.add(callee.returned);
+        }
+
+        return inputs;
+    }
+
+    // meet of the arguments every reachable call site passes, per callee
+    private Map<SootMethod, SparseConditionalConstPropagator.LatticeValue[]> argumentsPassed(
+        Summary summary, SparseConditionalConstPropagator sccp){
+
+        Map<SootMethod, SparseConditionalConstPropagator.LatticeValue[]> passed = new HashMap<>();
+
+        for (Unit u : summary.body.getUnits()){
+            Stmt stmt = (Stmt) u;
+            if (!stmt.containsInvokeExpr() || !sccp.isReachable(u))
+                continue;
+
+            InvokeExpr expr = stmt.getInvokeExpr();
+            Summary callee = summaries.get(targetOf(expr));
+            if (callee == null || callee.parameters == null)
+                continue;
+
+            SparseConditionalConstPropagator.LatticeValue[] args = passed.get(callee.method);
+            if (args == null){
+                args = topValues(expr.getArgCount());
+                passed.put(callee.method, args);
+            }
+
+            for (int i = 0; i < args.length; ++i)
+                args[i] = args[i].meet(sccp.valueOf(expr.getArg(i)));
+        }
+
+        return passed;
+    }
+
+    // recomputes the parameters from every caller, true if they changed
+    private boolean updateParameters(Summary summary){
+        if (summary == null || summary.parameters == null)
+            return false;
+
+        SparseConditionalConstPropagator.LatticeValue[] parameters =
+            topValues(summary.parameters.length);
+
+        for (Iterator<Edge> it = callGraph.edgesInto(summary.method); it.hasNext();){
+            SparseConditionalConstPropagator.LatticeValue[] args =
+                summaries.get(it.next().src()).passed.get(summary.method);
+
+            if (args == null)
+                continue;
+
+            for (int i = 0; i < parameters.length; ++i)
+                parameters[i] = parameters[i].meet(args[i]);
+        }
+
+        if (Arrays.equals(parameters, summary.parameters))
+            return false;
+
+        summary.parameters = parameters;
+        return true;
+    }
+
+    // TOP for every parameter, null if some caller isn't known
+    private SparseConditionalConstPropagator.LatticeValue[] initialParameters(SootMethod m){
+        if (!m.isStatic() && !m.isPrivate())
+            return null;
+        if (m.getParameterCount() == 0 || Scene.v().getEntryPoints().contains(m))
+            return null;
+
+        // lambdas and method references call it from outside the call graph
+        if (handles.contains(m))
+            return null;
+
+        for (Iterator<Edge> it = callGraph.edgesInto(m); it.hasNext();){
+            Edge edge = it.next();
+
+            if (!edge.isExplicit() || !summaries.containsKey(edge.src()))
+                return null;
+        }
+
+        return topValues(m.getParameterCount());
+    }
+
+    // methods a method handle refers to, either loaded as a constant or
+    // passed to the bootstrap method of an invokedynamic
+    private Set<SootMethod> methodHandles(){
+        Set<SootMethod> handles = new HashSet<>();
+
+        for (SootMethod m : summaries.keySet()){
+            for (Unit u : m.retrieveActiveBody().getUnits()){
+                List<Value> values = new ArrayList<>();
+                for (ValueBox box : u.getUseBoxes())
+                    values.add(box.getValue());
+
+                Stmt stmt = (Stmt) u;
+                if (stmt.containsInvokeExpr() && stmt.getInvokeExpr() instanceof DynamicInvokeExpr)
+                    values.addAll(((DynamicInvokeExpr) stmt.getInvokeExpr()).getBootstrapArgs());
+
+                for (Value v : values){
+                    if (v instanceof MethodHandle && ((MethodHandle) v).isMethodRef())
+                        handles.add(((MethodHandle) v).getMethodRef().tryResolve());
+                }
+            }
+        }
+
+        return handles;
+    }
+
+    private SparseConditionalConstPropagator.LatticeValue[] topValues(int count){
+        SparseConditionalConstPropagator.LatticeValue[] values =
+            new SparseConditionalConstPropagator.LatticeValue[count];
+        Arrays.fill(values, SparseConditionalConstPropagator.LatticeValue.TOP);
+
+        return values;
+    }
+
+    // the only method a call can reach, or null if it dispatches
+    private SootMethod targetOf(InvokeExpr expr){
+        if (expr instanceof StaticInvokeExpr)
+            return expr.getMethod();
+
+        // newer compilers call private methods with invokevirtual
+        if ((expr instanceof SpecialInvokeExpr || expr instanceof VirtualInvokeExpr)
+            && expr.getMethod().isPrivate())
+            return expr.getMethod();
+
+        return null;
+    }
+
+    // TOP only means 'not seen yet' while solving, once done it
+    // belongs to a method or parameter no analyzed code reaches
+    private SparseConditionalConstPropagator.LatticeValue settled(
+        SparseConditionalConstPropagator.LatticeValue value){
+
+        return complete && value.isTop()
+            ? SparseConditionalConstPropagator.LatticeValue.BOTTOM
+            : value;
+    }
+
+    private static final class Summary {
+        Summary(SootMethod method){
+            this.method = method;
+        }
+
+        final SootMethod method;
+        ShimpleBody body;
+
+        // null when not every caller is known
+        SparseConditionalConstPropagator.LatticeValue[] parameters;
+        SparseConditionalConstPropagator.LatticeValue returned =
+            SparseConditionalConstPropagator.LatticeValue.TOP;
+
+        // inputs of the last analysis and the arguments it found for each callee
+        List<SparseConditionalConstPropagator.LatticeValue> inputs;
+        Map<SootMethod, SparseConditionalConstPropagator.LatticeValue[]> passed = new HashMap<>();
+    }
+
+    private CallGraph callGraph;
+    private HashMap<SootMethod, Summary> summaries;
+    private Set<SootMethod> handles;
+    private int analyses;
+    private volatile boolean complete;
+}
@@ -0,0 +1,102 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.toolkits.graph.*;
+
+/*
+ * Natural loops of a unit graph
+ *
+ * A natural loop is the header h of a back edge u -> h (h dominates u) and
+ * every unit that reaches u without passing h. Loops sharing a header are
+ * merged into one.
+ */
+public class NaturalLoops {
+    NaturalLoops(UnitGraph graph){
+        this.graph = graph;
+        this.loops = new LinkedHashMap<>();
+        find();
+    }
+
+    // the largest loops, which enclose the others, first
+    List<Unit> headers(){
+        List<Unit> headers = new ArrayList<>(loops.keySet());
+        headers.sort((a, b) -> loops.get(b).size() - loops.get(a).size());
+        return headers;
+    }
+
+    Set<Unit> loopAt(Unit header){
+        return loops.get(header);
+    }
+
+    // the single unit outside the loop that enters it, either 'goto header'
+    // or a unit falling through into the header, null if there isn't one
+    Unit entryOf(Unit header){
+        Body body = graph.getBody();
+        UnitPatchingChain units = body.getUnits();
+        Set<Unit> loop = loops.get(header);
+
+        for (Trap trap : body.getTraps()){
+            if (trap.getHandlerUnit() == header)
+                return null;
+        }
+
+        Unit entry = null;
+        for (Unit pred : graph.getPredsOf(header)){
+            if (loop.contains(pred))
+                continue;
+            if (entry != null)
+                return null;
+
+            entry = pred;
+        }
+
+        // the body may have changed since the graph was built
+        if (entry == null || !units.contains(entry))
+            return null;
+
+        if (Utils.isGotoStmt(entry))
+            return ((GotoStmt) entry).getTarget() == header ? entry : null;
+
+        if (units.getSuccOf(entry) != header || !entry.fallsThrough())
+            return null;
+
+        // a branch to the header would skip whatever is put before it
+        for (UnitBox box : entry.getUnitBoxes()){
+            if (box.getUnit() == header)
+                return null;
+        }
+
+        return entry;
+    }
+
+    private void find(){
+        MHGDominatorsFinder<Unit> dominators = new MHGDominatorsFinder<>(graph);
+
+        for (Unit u : graph.getBody().getUnits()){
+            for (Unit succ : graph.getSuccsOf(u)){
+                if (dominators.isDominatedBy(u, succ))
+                    collect(loops.computeIfAbsent(succ, h -> new HashSet<>()), succ, u);
+            }
+        }
+    }
+
+    // adds the units that reach 'tail' without passing 'header'
+    private void collect(Set<Unit> loop, Unit header, Unit tail){
+        Deque<Unit> stack = new ArrayDeque<>();
+        loop.add(header);
+
+        if (loop.add(tail))
+            stack.push(tail);
+
+        while (!stack.isEmpty()){
+            for (Unit pred : graph.getPredsOf(stack.pop())){
+                if (loop.add(pred))
+                    stack.push(pred);
+            }
+        }
+    }
+
+    private UnitGraph graph;
+    private Map<Unit, Set<Unit>> loops;
+}
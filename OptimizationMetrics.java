@@ -0,0 +1,91 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import soot.*;
+
+/*
+ * Collects a MethodMetrics per optimized method and writes them out
+ *
+ * Off unless PA4 is run with '-metrics <file>'. While off, of() returns
+ * null and the passes skip every measurement, so the only cost left is a
+ * null check per body. The report is JSON if the file name ends in .json
+ * and CSV otherwise, and the slowest methods are printed as a summary.
+ */
+public class OptimizationMetrics {
+    static void enable(){
+        enabled = true;
+    }
+
+    // the record of 'm', null while metrics are off
+    static MethodMetrics of(SootMethod m){
+        if (!enabled)
+            return null;
+
+        return metrics.computeIfAbsent(m.getSignature(), MethodMetrics::new);
+    }
+
+    static void writeReport(String fileName, int top) throws IOException {
+        List<MethodMetrics> all = new ArrayList<>(metrics.values());
+        all.sort((a, b) -> Long.compare(b.totalNanos(), a.totalNanos()));
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))){
+            if (fileName.endsWith(".json"))
+                writeJson(writer, all);
+            else
+                writeCsv(writer, all);
+        }
+
+        long total = 0;
+        for (MethodMetrics m : all)
+            total += m.totalNanos();
+
+        System.out.println(String.format("Optimized %d methods in %.1f ms, wrote %s",
+            all.size(), total / 1e6, fileName));
+
+        System.out.println(String.format("%10s %10s %10s %10s %7s %7s %7s  %s",
+            "total ms", "ssa ms", "def/use ms", "prop ms", "pops", "folded", "removed", "method"));
+
+        for (MethodMetrics m : all.subList(0, Math.min(top, all.size()))){
+            System.out.println(String.format("%10.3f %10.3f %10.3f %10.3f %7d %7d %7d  %s",
+                m.totalNanos() / 1e6, m.shimpleNanos / 1e6, m.defUseNanos / 1e6, m.propagationNanos / 1e6,
+                m.worklistPops, m.constantsFolded + m.branchesFolded, m.statementsRemoved, m.signature));
+        }
+    }
+
+    private static void writeCsv(PrintWriter writer, List<MethodMetrics> all){
+        writer.println("method,units,shimple_ns,def_use_ns,propagation_ns,worklist_pops,"
+            + "constants_folded,branches_folded,expressions_reused,statements_removed");
+
+        for (MethodMetrics m : all){
+            writer.println("\"" + m.signature.replace("\"", "\"\"") + "\"," + m.units + ","
+                + m.shimpleNanos + "," + m.defUseNanos + "," + m.propagationNanos + ","
+                + m.worklistPops + "," + m.constantsFolded + "," + m.branchesFolded + "," + m.expressionsReused + ","
+                + m.statementsRemoved);
+        }
+    }
+
+    private static void writeJson(PrintWriter writer, List<MethodMetrics> all){
+        writer.println("[");
+
+        for (int i = 0; i < all.size(); ++i){
+            MethodMetrics m = all.get(i);
+            writer.print("  {\"method\": \"" + m.signature.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+                + ", \"units\": " + m.units
+                + ", \"shimpleNs\": " + m.shimpleNanos
+                + ", \"defUseNs\": " + m.defUseNanos
+                + ", \"propagationNs\": " + m.propagationNanos
+                + ", \"worklistPops\": " + m.worklistPops
+                + ", \"constantsFolded\": " + m.constantsFolded
+                + ", \"branchesFolded\": " + m.branchesFolded
+                + ", \"expressionsReused\": " + m.expressionsReused
+                + ", \"statementsRemoved\": " + m.statementsRemoved + "}");
+            writer.println(i + 1 < all.size() ? "," : "");
+        }
+
+        writer.println("]");
+    }
+
+    private static volatile boolean enabled;
+    private static final ConcurrentHashMap<String, MethodMetrics> metrics = new ConcurrentHashMap<>();
+}
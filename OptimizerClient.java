@@ -0,0 +1,61 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Sends class files to an OptimizerDaemon and writes back what it returns
+ *
+ *   java OptimizerClient <port> <output dir> <class files or directories>...
+ *
+ * Every class file found is sent in one request, the optimized classes are
+ * written under the output directory in their package directories.
+ */
+public class OptimizerClient {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3){
+            System.err.println("Usage: OptimizerClient <port> <output dir> <class files or directories>...");
+            System.exit(2);
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (int i = 2; i < args.length; ++i){
+            try (java.util.stream.Stream<Path> walk = Files.walk(Paths.get(args[i]))){
+                walk.filter(p -> p.toString().endsWith(".class")).sorted().forEach(files::add);
+            }
+        }
+
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))){
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.writeInt(files.size());
+            for (Path file : files){
+                byte[] bytes = Files.readAllBytes(file);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.flush();
+
+            if (in.readInt() != 0){
+                System.err.println("Optimization failed: " + in.readUTF());
+                System.exit(1);
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i){
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+
+                Path target = Paths.get(args[1], name.replace('.', File.separatorChar) + ".class");
+                Files.createDirectories(target.toAbsolutePath().getParent());
+                Files.write(target, bytes);
+            }
+
+            System.out.println(String.format("Optimized %d classes into %d in %.1f ms",
+                files.size(), count, (System.nanoTime() - start) / 1e6));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/*
+ * Optimizes class files sent over a socket or stdin with one warm Scene
+ *
+ * Soot is set up once, and every request is a batch of BatchOptimizer,
+ * which only loads and optimizes the classes it carries. Library classes
+ * stay resolved from one request to the next.
+ *
+ * A request and its response, all numbers big-endian ints:
+ *
+ *   request   count, then 'count' times: length, class file bytes
+ *   response  0, count, then 'count' times: UTF class name, length, bytes
+ *             1, UTF error message
+ *
+ * A connection may carry any number of requests, one after the other. The
+ * response holds every class Soot wrote, including the ones it generated,
+ * e.g. for lambdas. Classes a request refers to but doesn't carry are
+ * looked up on the class path, or else left phantom.
+ */
+public class OptimizerDaemon {
+    OptimizerDaemon(List<String> sootArgs, String classPath, AnalysisTransformer analysisTransformer) throws IOException {
+        this.optimizer = new BatchOptimizer(sootArgs, classPath, analysisTransformer, Collections.emptySet());
+    }
+
+    // serves one connection at a time, forever
+    void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())){
+            System.err.println("[daemon] listening on " + server.getLocalSocketAddress());
+
+            while (true){
+                try (Socket socket = server.accept()){
+                    serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+                } catch (IOException e){
+                    System.err.println("[daemon] connection failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // answers requests until the input ends
+    void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true){
+            int count;
+            try {
+                count = in.readInt();
+            } catch (EOFException e){
+                return;
+            }
+
+            List<byte[]> classes = new ArrayList<>();
+            for (int i = 0; i < count; ++i){
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.add(bytes);
+            }
+
+            long start = System.nanoTime();
+            Map<String, byte[]> optimized;
+            try {
+                optimized = optimizer.optimize(classes);
+            } catch (IOException | RuntimeException e){
+                e.printStackTrace();
+                out.writeInt(1);
+                out.writeUTF(String.valueOf(e.getMessage()));
+                out.flush();
+                continue;
+            }
+
+            out.writeInt(0);
+            out.writeInt(optimized.size());
+            for (Map.Entry<String, byte[]> e : optimized.entrySet()){
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+            out.flush();
+
+            System.err.println(String.format("[daemon] optimized %d classes in %.1f ms",
+                count, (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    private final BatchOptimizer optimizer;
+}
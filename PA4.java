@@ -1,28 +1,247 @@
+import java.io.*;
+import java.util.*;
+
 import soot.*;
+import soot.options.Options;
 
 public class PA4 {
     public static void main(String[] args) {
         String classPath = "."; 	        // change to appropriate path to the test class
         String dir = "./testcases";
 
+        // '-threads N' optimizes method bodies on N threads, by default (or N <= 0) on every core
+        // '-whole-program cha|spark' folds constants across calls
+        // '-metrics FILE' reports per-method times and counts, '-metrics-top N'
+        // prints the N slowest methods
+        // '-dump DIR' writes the shimple bodies to DIR, gzipped with '-dump-compress'
+        // '-p PHASE OPTIONS' is passed on to Soot
+        // '-cache DIR' reuses the output of classes unchanged since an earlier run
+        // '-daemon PORT|stdio' keeps Soot loaded and optimizes the classes sent to it
+        // '-in-jar IN -out-jar OUT' optimizes a jar into another, '-batch-size N' classes at a time
+        Integer threads = null;
+        String callGraph = null;
+        String metrics = null;
+        int metricsTop = 10;
+        String cacheDir = null;
+        String daemon = null;
+        String inJar = null;
+        String outJar = null;
+        int batchSize = 64;
+        List<String> configuration = new ArrayList<>();
+        List<String> phaseOptions = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i){
+            if (args[i].equals("-cache") && i + 1 < args.length){
+                cacheDir = args[++i];
+                continue;
+            }
+            configuration.add(args[i]);
+
+            if (args[i].equals("-threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-whole-program") && i + 1 < args.length)
+                callGraph = args[++i];
+            else if (args[i].equals("-metrics") && i + 1 < args.length)
+                metrics = args[++i];
+            else if (args[i].equals("-metrics-top") && i + 1 < args.length)
+                metricsTop = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-dump") && i + 1 < args.length)
+                phaseOptions.addAll(Arrays.asList("-p", "stp.cp", "dump:true", "-p", "stp.cp", "dump-dir:" + args[++i]));
+            else if (args[i].equals("-dump-compress"))
+                phaseOptions.addAll(Arrays.asList("-p", "stp.cp", "dump-compress:true"));
+            else if (args[i].equals("-daemon") && i + 1 < args.length)
+                daemon = args[++i];
+            else if (args[i].equals("-in-jar") && i + 1 < args.length)
+                inJar = args[++i];
+            else if (args[i].equals("-out-jar") && i + 1 < args.length)
+                outJar = args[++i];
+            else if (args[i].equals("-batch-size") && i + 1 < args.length)
+                batchSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-p") && i + 2 < args.length)
+                phaseOptions.addAll(Arrays.asList(args[i], args[++i], args[++i]));
+        }
+
+        // times are measured per method, and methods optimized side by side
+        // would slow each other down
+        if (metrics != null){
+            OptimizationMetrics.enable();
+            if (threads == null)
+                threads = 1;
+        }
+
         //Set up arguments for Soot
         String[] sootArgs = {
             "-cp", classPath, "-pp",        // sets the class path for Soot
-            "-keep-line-number",            // preserves line numbers in input Java files  
+            "-keep-line-number",            // preserves line numbers in input Java files
+            "-no-drop-bodies-after-load",   // the inliner copies callees as they were loaded
             "-f", "c",
-            "-via-shimple",
             "-p", "jop.cpf",
             "enabled:false",
+            "-p", "stp.cp",
+            "propagator:sccp",
             "-process-dir", dir
         };
 
+        List<String> allArgs = new ArrayList<>(Arrays.asList(sootArgs));
+        allArgs.addAll(phaseOptions);
+
+        // only changed classes and those they depend on are analyzed again,
+        // as argument classes instead of the whole directory
+        IncrementalCache cache = null;
+        Set<String> analyzed = null;
+        if (cacheDir != null && daemon == null && inJar == null){
+            try {
+                configuration.addAll(allArgs);
+                cache = new IncrementalCache(new File(cacheDir), new File(dir), configuration, callGraph != null);
+                analyzed = cache.restore(new File(OUTPUT_DIR));
+            } catch (IOException e){
+                System.err.println("Couldn't read the cache '" + cacheDir + "', analyzing every class");
+                e.printStackTrace();
+                cache = null;
+            }
+        }
+
+        if (cache != null){
+            if (analyzed.isEmpty())
+                return;
+
+            allArgs.removeAll(Arrays.asList("-process-dir", dir));
+            allArgs.set(allArgs.indexOf("-cp") + 1, classPath + File.pathSeparator + dir);
+            allArgs.addAll(analyzed);
+        }
+
+        sootArgs = allArgs.toArray(new String[0]);
+
         // Create transformer for analysis
         AnalysisTransformer analysisTransformer = new AnalysisTransformer();
 
-        // Add transformer to appropriate pack in PackManager; PackManager will run all packs when soot.Main.main is called
-        PackManager.v().getPack("stp").add(new Transform("stp.cp", analysisTransformer));
+        // small static and private methods are inlined before propagation
+        Transform inline = new Transform("stp.inline", new Inliner());
+        inline.setDeclaredOptions("enabled max-size max-depth max-body-size");
+        inline.setDefaultOptions("enabled:true max-size:40 max-depth:3 max-body-size:2000");
+        PackManager.v().getPack("stp").add(inline);
+
+        // Add transformer to appropriate pack in PackManager; PackManager will run all packs when run() applies them
+        Transform cp = new Transform("stp.cp", analysisTransformer);
+        cp.setDeclaredOptions("enabled propagator fields ranges gvn dump dump-dir dump-compress");
+        cp.setDefaultOptions("enabled:true propagator:simple fields:true ranges:true gvn:true dump:false dump-dir:shimple dump-compress:false");
+        PackManager.v().getPack("stp").add(cp);
+
+        // loops computing only constants go first, invariant code leaves the
+        // remaining ones before strength reduction runs on the propagated body
+        PackManager.v().getPack("stp").add(new Transform("stp.le", new LoopEliminator()));
+        PackManager.v().getPack("stp").add(new Transform("stp.licm", new LoopInvariantHoister()));
+        PackManager.v().getPack("stp").add(new Transform("stp.sr", new StrengthReducer()));
+
+        // the daemon optimizes whatever it is sent, with the body packs only
+        if (daemon != null){
+            serve(Arrays.asList(sootArgs), classPath, daemon, analysisTransformer);
+            return;
+        }
+
+        if (inJar != null){
+            try {
+                new JarOptimizer(Arrays.asList(sootArgs), classPath, analysisTransformer, new File(inJar),
+                    new File(outJar != null ? outJar : "optimized.jar"), batchSize).run();
+            } catch (IOException e){
+                System.err.println("Couldn't optimize '" + inJar + "'");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
+        run(sootArgs, threads != null ? threads : 0, callGraph);
+
+        analysisTransformer.close();
+
+        if (cache != null){
+            try {
+                cache.store(new File(OUTPUT_DIR), analyzed);
+            } catch (IOException e){
+                System.err.println("Couldn't write the cache '" + cacheDir + "'");
+                e.printStackTrace();
+            }
+        }
 
-        // Call Soot's main method with arguments
-        soot.Main.main(sootArgs);
+        if (metrics != null){
+            try {
+                OptimizationMetrics.writeReport(metrics, metricsTop);
+            } catch (IOException e){
+                System.err.println("Couldn't write '" + metrics + "'");
+                e.printStackTrace();
+            }
+        }
     }
+
+    // the protocol has stdout to itself in stdio mode, Soot prints to stderr instead
+    private static void serve(List<String> sootArgs, String classPath, String daemon, AnalysisTransformer analysisTransformer){
+        PrintStream stdout = System.out;
+        if (daemon.equals("stdio"))
+            System.setOut(System.err);
+
+        try {
+            OptimizerDaemon server = new OptimizerDaemon(sootArgs, classPath, analysisTransformer);
+            if (daemon.equals("stdio")){
+                server.serve(new DataInputStream(new BufferedInputStream(System.in)),
+                    new DataOutputStream(new BufferedOutputStream(stdout)));
+            } else {
+                server.serve(Integer.parseInt(daemon));
+            }
+        } catch (IOException e){
+            System.err.println("The daemon failed");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // same pipeline as soot.Main with '-via-shimple', except that ParallelOptimizer
+    // runs the Shimple packs, only on bodies they can change, and in whole-program
+    // mode with the summaries computed on the call graph from every main method
+    private static void run(String[] sootArgs, int threads, String callGraph){
+        List<String> args = new ArrayList<>(Arrays.asList(sootArgs));
+
+        if (callGraph != null){
+            args.add("-w");
+            if (callGraph.equals("spark"))
+                args.addAll(Arrays.asList("-p", "cg.spark", "enabled:true"));
+            else if (!callGraph.equals("cha"))
+                throw new CompilationDeathException("Unknown call graph '" + callGraph + "'");
+
+            PackManager.v().getPack("wjtp").add(
+                new Transform("wjtp.icp", new InterproceduralConstants()));
+        }
+
+        if (!Options.v().parse(args.toArray(new String[0])))
+            throw new CompilationDeathException("Option parse error");
+
+        Scene.v().loadNecessaryClasses();
+
+        if (callGraph != null){
+            // every test case has a main of its own
+            List<SootMethod> entryPoints = new ArrayList<>();
+            for (SootClass c : Scene.v().getApplicationClasses()){
+                for (SootMethod m : c.getMethods()){
+                    if (m.isMain() || m.isStaticInitializer())
+                        entryPoints.add(m);
+                }
+            }
+
+            Scene.v().setEntryPoints(entryPoints);
+        }
+
+        // bodies reach the body packs as jimple that has already been through stp
+        if (callGraph != null){
+            PackManager.v().getPack("cg").apply();
+            PackManager.v().getPack("wjtp").apply();
+            Options.v().set_whole_program(false);
+        }
+
+        new ParallelOptimizer(threads).run();
+
+        PackManager.v().runPacks();
+        PackManager.v().writeOutput();
+    }
+
+    // where Soot writes the optimized classes
+    private static final String OUTPUT_DIR = "sootOutput";
 }
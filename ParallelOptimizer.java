@@ -0,0 +1,96 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import soot.*;
+import soot.shimple.*;
+
+/*
+ * Runs the Shimple packs (stp, sop) over every application method on a
+ * work-stealing pool. Soot's own body packs only split the work per class,
+ * so a single big class keeps one core busy while the rest sit idle.
+ */
+public class ParallelOptimizer {
+    ParallelOptimizer(int threads){
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public void run(){
+        List<SootMethod> methods = new ArrayList<>();
+        for (SootClass c : Scene.v().getApplicationClasses()){
+            for (SootMethod m : new ArrayList<>(c.getMethods())){
+                if (m.isConcrete())
+                    methods.add(m);
+            }
+        }
+
+        // jimple bodies are built up front, the front-end resolves
+        // classes on demand and that isn't safe to do from every worker
+        for (SootMethod m : methods)
+            m.retrieveActiveBody();
+
+        // and the static fields they set once, before any is transformed
+        FieldConstants.analyze(Scene.v().getApplicationClasses());
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+
+        try {
+            // one task per method, idle workers steal from busy ones
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (SootMethod m : methods)
+                tasks.add(pool.submit(() -> optimize(m)));
+
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } finally {
+            pool.shutdown();
+        }
+
+        long wall = System.nanoTime() - start;
+
+        // the summed task time includes the time tasks spent waiting for each
+        // other's locks, so it's more than one thread would take, which only
+        // '-threads 1' measures
+        double wallMs = wall / 1e6;
+        double taskMs = busyTime.get() / 1e6;
+        System.out.println(String.format(
+            "Optimized %d methods on %d threads in %.1f ms (summed task time %.1f ms, %.2fx the wall time), %d without SSA",
+            methods.size(), threads, wallMs, taskMs,
+            wallMs > 0 ? taskMs / wallMs : 1.0, skipped.get()
+        ));
+    }
+
+    private void optimize(SootMethod m){
+        long start = System.nanoTime();
+
+        // bodies the Shimple packs can't change go to the jimple packs as they are
+        Body body = m.getActiveBody();
+        if (!new SsaPrescan(body, InterproceduralConstants.summaries(), FieldConstants.current()).needsSsa()){
+            skipped.incrementAndGet();
+            busyTime.addAndGet(System.nanoTime() - start);
+            return;
+        }
+
+        // the inliner may be copying the same body on another thread
+        ShimpleBody sBody;
+        synchronized (body){
+            sBody = Shimple.v().newBody(body);
+        }
+
+        MethodMetrics metrics = OptimizationMetrics.of(m);
+        if (metrics != null)
+            metrics.shimpleNanos += System.nanoTime() - start;
+
+        PackManager.v().getPack("stp").apply(sBody);
+        PackManager.v().getPack("sop").apply(sBody);
+        m.setActiveBody(sBody.toJimpleBody());
+
+        busyTime.addAndGet(System.nanoTime() - start);
+    }
+
+    private final int threads;
+    private final AtomicLong busyTime = new AtomicLong();
+    private final AtomicInteger skipped = new AtomicInteger();
+}
@@ -0,0 +1,111 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+import soot.*;
+
+/*
+ * Writes the Shimple bodies handed to dump() on a background thread
+ *
+ * The text of a body is taken on the caller's thread, since the body is
+ * transformed right after, and queued. The writer drains the queue in
+ * batches and writes every body through a buffered (and with 'compress'
+ * gzipped) stream to '<dir>/<class>.<method>-<parameter types>.shimple'.
+ * A name that was already written, e.g. two methods that only differ in
+ * characters replaced by '_', gets a numbered suffix instead of replacing
+ * the earlier file. The queue is bounded so a slow disk holds the
+ * analysis back rather than filling the heap.
+ */
+public class ShimpleDumper {
+    ShimpleDumper(File dir, boolean compress){
+        this.dir = dir;
+        this.compress = compress;
+
+        writer = new Thread(this::write, "shimple-dumper");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void dump(Body body){
+        Dump d = new Dump(Utils.fileNameOf(body.getMethod()), body.toString());
+        try {
+            queue.put(d);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // writes whatever is queued and stops the writer
+    void close(){
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.println(String.format("Dumped %d bodies to '%s'", written, dir));
+    }
+
+    private void write(){
+        if (!dir.isDirectory() && !dir.mkdirs())
+            System.err.println("Couldn't create directory '" + dir + "'");
+
+        List<Dump> batch = new ArrayList<>();
+        while (true){
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e){
+                return;
+            }
+            queue.drainTo(batch, BATCH - 1);
+
+            for (Dump d : batch){
+                if (d == END)
+                    return;
+                write(d);
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(Dump d){
+        String name = d.name;
+        for (int i = 2; !names.add(name); ++i)
+            name = d.name + "-" + i;
+
+        File file = new File(dir, name + (compress ? ".shimple.gz" : ".shimple"));
+        try (OutputStream out = new FileOutputStream(file);
+             Writer fWriter = new BufferedWriter(new OutputStreamWriter(
+                 compress ? new GZIPOutputStream(out, 1 << 16) : out, "UTF-8"), 1 << 16)){
+            fWriter.write(d.text);
+            ++written;
+        } catch (IOException e){
+            System.err.println("Couldn't write file '" + file + "'");
+            e.printStackTrace();
+        }
+    }
+
+    private static final class Dump {
+        Dump(String name, String text){
+            this.name = name;
+            this.text = text;
+        }
+
+        final String name;
+        final String text;
+    }
+
+    private static final int BATCH = 64;
+    private static final Dump END = new Dump(null, null);
+
+    private final File dir;
+    private final boolean compress;
+    private final Thread writer;
+    private final BlockingQueue<Dump> queue = new ArrayBlockingQueue<>(1024);
+
+    // only touched by the writer thread, read after join()
+    private final Set<String> names = new HashSet<>();
+    private int written;
+}
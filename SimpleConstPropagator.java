@@ -20,42 +20,50 @@ public class SimpleConstPropagator{
         analyze();
     }
 
+    // adds what this run cost and folded to 'metrics'
+    void record(MethodMetrics metrics){
+        metrics.defUseNanos += defUseNanos;
+        metrics.propagationNanos += propagationNanos;
+        metrics.worklistPops += worklistPops;
+        metrics.constantsFolded += constantsFolded;
+        metrics.branchesFolded += branchesFolded;
+    }
+
     private void analyze(){
         final String sep = "----------------------";
 
         UnitPatchingChain units = body.getUnits();
-        // use-def chain
-        ShimpleLocalDefs localDefs = new ShimpleLocalDefs(body);
+        long start = System.nanoTime();
         // def-use chain
-        ShimpleLocalUses localUses = new ShimpleLocalUses(body);
-        // all locals
-        Chain<Local> locals = body.getLocals();
-
-        // number of uses of an unit, will be useful to find dead stmts
-        HashMap<Unit, Integer> useCount = new HashMap<>();
-        for (Local local : locals){
-            List<Unit> defs = localDefs.getDefsOf(local);
-            if (defs.isEmpty())
-                continue;
+        localUses = new ShimpleLocalUses(body);
+        // dense numbers for every unit and local
+        numbering = new BodyNumbering(body);
+        int unitCount = numbering.unitCount();
 
-            useCount.put(defs.get(0), localUses.getUsesOf(local).size());
-        }
-        
-        // mapping between old and new stmt, used when simplifying
-        HashMap<Unit, Unit> replaceWith = new HashMap<>();
-        for (Unit u : units){
-            replaceWith.put(u, (Unit) u.clone());
-        }
+        long built = System.nanoTime();
+        defUseNanos = built - start;
+
+        // uses that copy propagation moved from one local onto another,
+        // they aren't in 'localUses'
+        copiedUses = newUseLists(numbering.localCount());
 
-        HashSet<Unit> deadStmts = new HashSet<>();
+        // mapping between old and new stmt, used when simplifying;
+        // a unit is only copied once it actually changes
+        replaceWith = new Unit[unitCount];
 
-        LinkedList<Unit> q = new LinkedList<>();
-        q.addAll(units);
+        BitSet deadStmts = new BitSet(unitCount);
+
+        // each unit is queued at most once at a time
+        IntWorklist q = new IntWorklist(unitCount);
+        for (int i = 0; i < unitCount; ++i)
+            q.add(i);
 
         // process each statement
         while (!q.isEmpty()){
-            Unit u = q.pollFirst();
-            Unit changedU = replaceWith.get(u);
+            int index = q.poll();
+            Unit u = numbering.unitAt(index);
+            Unit changedU = current(index);
+            ++worklistPops;
 
             if (Utils.isAssignmentStmt(changedU)){
                 JAssignStmt stmt = (JAssignStmt) changedU;
@@ -71,62 +79,166 @@ public class SimpleConstPropagator{
                 // x = phi(c, c, c, ...) for some c
                 if (Utils.isPhiExpr(rhs) && phiExprAllConstant((SPhiExpr) rhs)){
                     SPhiExpr phiExpr = (SPhiExpr) rhs;
-                    stmt.setRightOp(
-                        IntConstant.v(
-                            Utils.extractIntValue(phiExpr.getValue(0))
-                        )
-                    );
+                    stmt = (JAssignStmt) writable(index);
+                    stmt.setRightOp(phiExpr.getValue(0));
 
                     rhs = stmt.getRightOp();
                 }
 
-                if (Utils.isIntConstant(rhs)){       // x = c
+                // x = c op c, operands may already be constants in the input
+                if (!Utils.isConstant(rhs) && !Utils.isPhiExpr(rhs)){
+                    Constant folded = ConstantEvaluator.evaluate(rhs);
+
+                    if (folded != null){
+                        stmt = (JAssignStmt) writable(index);
+                        stmt.setRightOp(folded);
+                        rhs = folded;
+                    }
+                }
+
+                // x = y op 0, x = y * 1, x = y - y, ...
+                if (rhs instanceof BinopExpr){
+                    Value simpler = AlgebraicSimplifier.simplify((BinopExpr) rhs);
+
+                    if (simpler != null){
+                        stmt = (JAssignStmt) writable(index);
+                        stmt.setRightOp(simpler);
+                        rhs = simpler;
+                    }
+                }
+
+                if (Utils.isNumericConstant(rhs)){   // x = c
                     // propagate the constant to all uses
-                    for (Object useValueBox : localUses.getUsesOf(u)){
-                        UnitValueBoxPair pair = (UnitValueBoxPair) useValueBox;
-                        Unit use = pair.getUnit();
+                    for (int useIndex : usesOf(u, local)){
+                        if (!usesLocal(current(useIndex), local))
+                            continue;
 
                         // simplify the use with the value of this unit's local
-                        replaceWith.put(
-                            use, 
-                            simplify(
-                                use,
-                                replaceWith.get(use), 
-                                local, (IntConstant) rhs,
-                                deadStmts
-                            )
+                        replaceWith[useIndex] = simplify(
+                            useIndex,
+                            writable(useIndex), 
+                            local, rhs,
+                            deadStmts
+                        );
+
+                        q.add(useIndex);
+                    }
+                } else if (Utils.isLocal(rhs)
+                    && rhs.getType().equals(local.getType())){     // x = y
+                    // copy propagation, the uses of x read y instead
+                    Local source = (Local) rhs;
+
+                    for (int useIndex : usesOf(u, local)){
+                        // a copy can't move into a phi, leaving SSA
+                        // would need a copy at the end of the predecessor
+                        if (Shimple.isPhiNode(numbering.unitAt(useIndex))
+                            || !usesLocal(current(useIndex), local))
+                            continue;
+
+                        replaceWith[useIndex] = simplify(
+                            useIndex,
+                            writable(useIndex),
+                            local, source,
+                            deadStmts
                         );
 
-                        q.add(use);
+                        // once 'source' turns constant this use needs it too
+                        copiedUses.get(numbering.indexOf(source)).add(useIndex);
+                        q.add(useIndex);
                     }
-                }      
+                }
                 
             } 
         }
 
-        // remove all dead stmts
-        units.removeAll(deadStmts);
+        // apply all changes in a single pass over the original units,
+        // swapWith and remove keep branch targets, trap boundaries and
+        // phi predecessors pointing at the right units
+        for (int i = 0; i < unitCount; ++i){
+            Unit original = numbering.unitAt(i);
+
+            if (deadStmts.get(i)){
+                if (Utils.isIfStmt(original))
+                    ++branchesFolded;
+
+                units.remove(original);
+                continue;
+            }
+
+            // unchanged
+            if (replaceWith[i] == null)
+                continue;
 
-        // // swap the units with their changed versions
-        for (Map.Entry<Unit, Unit> entry : replaceWith.entrySet()){
-            if (Utils.isAssignmentStmt(entry.getKey())){
-                JAssignStmt stmt = (JAssignStmt) entry.getKey();
+            // phi nodes stay, only their uses were rewritten
+            if (Utils.isAssignmentStmt(original)){
+                JAssignStmt stmt = (JAssignStmt) original;
                 
                 if (Utils.isPhiExpr(stmt.getRightOp()))
                     continue;
+
+                if (Utils.isConstant(((JAssignStmt) replaceWith[i]).getRightOp())
+                    && !Utils.isConstant(stmt.getRightOp()))
+                    ++constantsFolded;
             }
 
-            if (units.contains(entry.getKey()))
-                units.swapWith(entry.getKey(), entry.getValue());
+            if (Utils.isIfStmt(original) && Utils.isGotoStmt(replaceWith[i]))
+                ++branchesFolded;
+
+            units.swapWith(original, replaceWith[i]);
         }
+
+        propagationNanos = System.nanoTime() - built;
+    }
+
+    // units using the local defined by 'def', including the uses
+    // copy propagation has since redirected onto it
+    private List<Integer> usesOf(Unit def, Local local){
+        List<Integer> uses = new ArrayList<>();
+        for (UnitValueBoxPair pair : localUses.getUsesOf(def))
+            uses.add(numbering.indexOf(pair.getUnit()));
+
+        uses.addAll(copiedUses.get(numbering.indexOf(local)));
+        return uses;
+    }
+
+    private boolean usesLocal(Unit u, Local local){
+        for (ValueBox box : u.getUseBoxes()){
+            if (box.getValue() == local)
+                return true;
+        }
+
+        return false;
+    }
+
+    private static List<List<Integer>> newUseLists(int count){
+        List<List<Integer>> lists = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            lists.add(new ArrayList<>());
+
+        return lists;
+    }
+
+    // the latest version of a unit
+    private Unit current(int index){
+        return replaceWith[index] != null
+            ? replaceWith[index]
+            : numbering.unitAt(index);
+    }
+
+    // copy-on-write, the original stays in the body until the final pass
+    private Unit writable(int index){
+        if (replaceWith[index] == null)
+            replaceWith[index] = (Unit) numbering.unitAt(index).clone();
+
+        return replaceWith[index];
     }
 
     private Unit simplify(
-        Unit original,
+        int original,
         Unit u, 
         JimpleLocal var, 
-        IntConstant value,
-        HashSet<Unit> deadStmts){
+        Value value,
+        BitSet deadStmts){
 
         // assignment stmt
         if (Utils.isAssignmentStmt(u)){
@@ -137,6 +249,12 @@ public class SimpleConstPropagator{
             if (Utils.isConstant(rhs))
                 return u;
 
+            // copy of 'var'
+            if (isEquiv(rhs, var)){
+                stmt.setRightOp(value);
+                return u;
+            }
+
             // Phi expr
             if (Utils.isPhiExpr(rhs)){
                 SPhiExpr phiExpr = (SPhiExpr) rhs;
@@ -153,121 +271,15 @@ public class SimpleConstPropagator{
                 }
             }
 
-            // addition
-            if (Utils.isAddExpr(rhs)){
-                JAddExpr expr = (JAddExpr) rhs;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    stmt.setRightOp(
-                        IntConstant.v(
-                            Utils.extractIntValue(left)
-                            + Utils.extractIntValue(right)
-                        )
-                    );
-                }
-            }
-
-            // subtraction
-            if (Utils.isSubExpr(rhs)){
-                JSubExpr expr = (JSubExpr) rhs;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    stmt.setRightOp(
-                        IntConstant.v(
-                            Utils.extractIntValue(left)
-                            - Utils.extractIntValue(right)
-                        )
-                    );
-                }
-            }
-            
-            // multiplication
-            if (Utils.isMulExpr(rhs)){
-                JMulExpr expr = (JMulExpr) rhs;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    stmt.setRightOp(
-                        IntConstant.v(
-                            Utils.extractIntValue(left)
-                            * Utils.extractIntValue(right)
-                        )
-                    );
-                }
-            }
-
-            // division
-            if (Utils.isDivExpr(rhs)){
-                JDivExpr expr = (JDivExpr) rhs;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    stmt.setRightOp(
-                        IntConstant.v(
-                            Utils.extractIntValue(left)
-                            / Utils.extractIntValue(right)
-                        )
-                    );
-                }
-            }
-
-            // negation
-            if (Utils.isNegExpr(rhs)){
-                JNegExpr expr = (JNegExpr) rhs;
-                Value op = expr.getOp();
-
-                if (isEquiv(op, var)){
-                    stmt.setRightOp(IntConstant.v(-value.value));
+            // arithmetic, bitwise, shift, cmp/cmpl/cmpg, negation and
+            // cast expressions, folded once all their operands are constants
+            if (ConstantEvaluator.isFoldable(rhs)){
+                if (replaceUses(rhs, var, value)){
+                    // null if an operand is still unknown or the
+                    // expression has to be left for runtime (x / 0)
+                    Constant folded = ConstantEvaluator.evaluate(rhs);
+                    if (folded != null)
+                        stmt.setRightOp(folded);
                 }
             }
         }
@@ -276,207 +288,17 @@ public class SimpleConstPropagator{
         if (Utils.isIfStmt(u)){
             JIfStmt stmt = (JIfStmt) u;
             Value cond = stmt.getCondition();
-            boolean fallThrough = false;
-            boolean branch = false;
-
-            // >
-            if (Utils.isGtExpr(cond)){
-                JGtExpr expr = (JGtExpr) cond;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    
-                    // evaluate the branch condition
-                    boolean condition = Utils.extractIntValue(left)
-                                    > Utils.extractIntValue(right);
-                    
-                    // if the condition is true, we'll replace
-                    // if stmt with goto to target
-                    if (condition)
-                        branch = true;
-                    else                    // otherwise we delete the if stmt
-                        fallThrough = true;
-                }
-            }
-
-            // >=
-            if (Utils.isGeExpr(cond)){
-                JGeExpr expr = (JGeExpr) cond;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    
-                    // evaluate the branch condition
-                    boolean condition = Utils.extractIntValue(left)
-                                    >= Utils.extractIntValue(right);
-                    
-                    // if the condition is true, we'll replace
-                    // if stmt with goto to target
-                    if (condition)
-                        branch = true;
-                    else                    // otherwise we delete the if stmt
-                        fallThrough = true;
-                }
-            }
-
-            // <
-            if (Utils.isLtExpr(cond)){
-                JLtExpr expr = (JLtExpr) cond;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    
-                    // evaluate the branch condition
-                    boolean condition = Utils.extractIntValue(left)
-                                    < Utils.extractIntValue(right);
-                    
-                    // if the condition is true, we'll replace
-                    // if stmt with goto to target
-                    if (condition)
-                        branch = true;
-                    else                    // otherwise we delete the if stmt
-                        fallThrough = true;
-                }
-            }
 
-            // <=
-            if (Utils.isLeExpr(cond)){
-                JLeExpr expr = (JLeExpr) cond;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
+            // if the condition is true, we'll replace the if stmt with
+            // a goto to its target, otherwise we delete it
+            if (replaceUses(cond, var, value)){
+                Constant folded = ConstantEvaluator.evaluate(cond);
 
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    
-                    // evaluate the branch condition
-                    boolean condition = Utils.extractIntValue(left)
-                                    <= Utils.extractIntValue(right);
-                    
-                    // if the condition is true, we'll replace
-                    // if stmt with goto to target
-                    if (condition)
-                        branch = true;
-                    else                    // otherwise we delete the if stmt
-                        fallThrough = true;
-                }
+                if (Utils.isIntConstant(folded) && Utils.extractIntValue(folded) != 0)
+                    return Jimple.v().newGotoStmt(stmt.getTargetBox());
+                else if (Utils.isIntConstant(folded))
+                    deadStmts.set(original);
             }
-
-            // ==
-            if (Utils.isEqExpr(cond)){
-                JEqExpr expr = (JEqExpr) cond;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    
-                    // evaluate the branch condition
-                    boolean condition = Utils.extractIntValue(left)
-                                    == Utils.extractIntValue(right);
-                    
-                    // if the condition is true, we'll replace
-                    // if stmt with goto to target
-                    if (condition)
-                        branch = true;
-                    else                    // otherwise we delete the if stmt
-                        fallThrough = true;
-                }
-            }
-
-            // !=
-            if (Utils.isNeExpr(cond)){
-                JNeExpr expr = (JNeExpr) cond;
-                Value left = expr.getOp1();
-                Value right = expr.getOp2();
-
-                if (isEquiv(left, var)){
-                    expr.setOp1(value);
-                    left = value;
-                }
-
-                if (isEquiv(right, var)){
-                    expr.setOp2(value);
-                    right = value;
-                }
-
-                if (Utils.isIntConstant(left)
-                    && Utils.isIntConstant(right)){
-                    
-                    // evaluate the branch condition
-                    boolean condition = Utils.extractIntValue(left)
-                                    != Utils.extractIntValue(right);
-                    
-                    // if the condition is true, we'll replace
-                    // if stmt with goto to target
-                    if (condition)
-                        branch = true;
-                    else                    // otherwise we delete the if stmt
-                        fallThrough = true;
-                }
-            }
-
-            // printObject(stmt);
-            // if branch then replace if with goto to branch target
-            if (branch)
-                return Jimple.v().newGotoStmt(stmt.getTargetBox());
-            else if (fallThrough)       // otherwise we fall through so delete if stmt
-                deadStmts.add(original);
         }
 
         // return stmt
@@ -510,6 +332,19 @@ public class SimpleConstPropagator{
         return u;
     }
     
+    // puts 'value' in place of every operand of 'expr' that is 'var'
+    private boolean replaceUses(Value expr, JimpleLocal var, Value value){
+        boolean replaced = false;
+        for (ValueBox box : expr.getUseBoxes()){
+            if (isEquiv(box.getValue(), var)){
+                box.setValue(value);
+                replaced = true;
+            }
+        }
+
+        return replaced;
+    }
+
     private boolean isEquiv(Value v, JimpleLocal local){
         return Utils.isLocal(v) && local.equivTo((JimpleLocal) v);
     }
@@ -522,16 +357,16 @@ public class SimpleConstPropagator{
         
         // first arg
         Value arg = expr.getValue(0);
-        if (!Utils.isIntConstant(arg))
+        if (!Utils.isNumericConstant(arg))
             return false;
         
         // check the rest of the args
-        IntConstant c = (IntConstant) arg;
+        Constant c = (Constant) arg;
         for (int i = 1; i < expr.getArgCount(); ++i){
             arg = expr.getValue(i);
 
-            if (!Utils.isIntConstant(arg)
-                || !c.equivTo((IntConstant) arg))
+            if (!Utils.isNumericConstant(arg)
+                || !c.equivTo(arg))
                 return false;
         }
 
@@ -539,4 +374,14 @@ public class SimpleConstPropagator{
     }
 
     private ShimpleBody body;
+    private BodyNumbering numbering;
+    private ShimpleLocalUses localUses;
+    private Unit[] replaceWith;
+    private List<List<Integer>> copiedUses;
+
+    private long defUseNanos;
+    private long propagationNanos;
+    private int worklistPops;
+    private int constantsFolded;
+    private int branchesFolded;
 }
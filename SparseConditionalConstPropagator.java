@@ -1,7 +1,548 @@
+import soot.*;
+import soot.jimple.*;
+import soot.jimple.internal.*;
+import soot.shimple.*;
+import soot.shimple.toolkits.scalar.*;
+import soot.toolkits.graph.ExceptionalUnitGraph;
+import soot.toolkits.scalar.UnitValueBoxPair;
+
+import java.util.*;
+
 /*
  * Reference: https://people.iith.ac.in/ramakrishna/fc5264/ssa-intro-construct.pdf
  * Sparse Conditional Constant Folder and Propagator
+ *
+ * Wegman-Zadeck SCCP over a ShimpleBody. Every local starts at TOP, and only
+ * statements reached through executable CFG edges are evaluated, so constants
+ * flowing into a phi through a dead branch don't pull it down to BOTTOM.
  */
 public class SparseConditionalConstPropagator {
+    SparseConditionalConstPropagator(Body body){
+        this(body, null, true);
+    }
+
+    // 'summaries' supplies the values of parameters and calls, without
+    // 'rewrite' the body is only analyzed and left as it is
+    SparseConditionalConstPropagator(Body body, MethodSummaries summaries, boolean rewrite){
+        this.body = (ShimpleBody) body;
+        this.summaries = summaries;
+
+        long start = System.nanoTime();
+        analyze();
+
+        if (rewrite)
+            rewrite();
+
+        propagationNanos = System.nanoTime() - start - defUseNanos;
+    }
+
+    // meet of the values the reachable return stmts return
+    LatticeValue returnValue(){
+        LatticeValue result = LatticeValue.TOP;
+        for (Unit u : units){
+            if (Utils.isReturnStmt(u) && reachable.contains(u))
+                result = result.meet(valueOf(((ReturnStmt) u).getOp()));
+        }
+
+        return result;
+    }
+
+    boolean isReachable(Unit u){
+        return reachable.contains(u);
+    }
+
+    // adds what this run cost and folded to 'metrics'
+    void record(MethodMetrics metrics){
+        metrics.defUseNanos += defUseNanos;
+        metrics.propagationNanos += propagationNanos;
+        metrics.worklistPops += worklistPops;
+        metrics.constantsFolded += constantsFolded;
+        metrics.branchesFolded += branchesFolded;
+    }
+
+    private void analyze(){
+        long start = System.nanoTime();
+        units = body.getUnits();
+        graph = new ExceptionalUnitGraph(body);
+        localUses = new ShimpleLocalUses(body);
+        defUseNanos = System.nanoTime() - start;
+
+        for (Trap trap : body.getTraps())
+            handlers.add(trap.getHandlerUnit());
+
+        // the entry edges have no source
+        for (Unit head : graph.getHeads())
+            cfgWork.add(new Unit[]{ null, head });
+
+        while (!cfgWork.isEmpty() || !ssaWork.isEmpty()){
+            while (!cfgWork.isEmpty()){
+                Unit[] edge = cfgWork.pollFirst();
+                visitEdge(edge[0], edge[1]);
+                ++worklistPops;
+            }
+
+            while (!ssaWork.isEmpty()){
+                Unit u = ssaWork.pollFirst();
+                ++worklistPops;
+
+                // only statements already known to execute are re-evaluated
+                if (!reachable.contains(u))
+                    continue;
+
+                if (Shimple.isPhiNode(u))
+                    visitPhi(u);
+                else
+                    visitStmt(u);
+            }
+        }
+    }
+
+    private void visitEdge(Unit from, Unit to){
+        if (from != null && !markEdge(from, to))
+            return;
+
+        boolean firstVisit = reachable.add(to);
+
+        if (Shimple.isPhiNode(to)){
+            // a new incoming edge may change every phi of the block
+            for (Unit phi = to;
+                phi != null && Shimple.isPhiNode(phi);
+                phi = units.getSuccOf(phi)){
+
+                if (phi == to || reachable.contains(phi))
+                    visitPhi(phi);
+            }
+
+            if (firstVisit){
+                for (Unit succ : graph.getSuccsOf(to))
+                    cfgWork.add(new Unit[]{ to, succ });
+            }
+        } else if (firstVisit){
+            visitStmt(to);
+        }
+    }
+
+    private void visitPhi(Unit u){
+        JAssignStmt stmt = (JAssignStmt) u;
+        PhiExpr phiExpr = Shimple.getPhiExpr(u);
+        Unit head = blockHead(u);
+
+        LatticeValue result = LatticeValue.TOP;
+        for (int i = 0; i < phiExpr.getArgCount(); ++i){
+            if (!isExecutable(phiExpr.getPred(i), head))
+                continue;
+
+            result = result.meet(valueOf(phiExpr.getValue(i)));
+        }
+
+        update((Local) stmt.getLeftOp(), result, u);
+    }
+
+    private void visitStmt(Unit u){
+        List<Unit> succs = graph.getSuccsOf(u);
+
+        // x = expr
+        if (Utils.isAssignmentStmt(u)){
+            JAssignStmt stmt = (JAssignStmt) u;
+
+            if (Utils.isLocal(stmt.getLeftOp()))
+                update((Local) stmt.getLeftOp(), evaluate(stmt.getRightOp()), u);
+
+            addEdges(u, succs);
+            return;
+        }
+
+        // this and caught exceptions are unknown, parameters unless
+        // every caller is known to pass the same constant
+        if (u instanceof IdentityStmt){
+            IdentityStmt stmt = (IdentityStmt) u;
+            Value rhs = stmt.getRightOp();
+
+            LatticeValue value = LatticeValue.BOTTOM;
+            if (summaries != null && rhs instanceof ParameterRef)
+                value = summaries.parameter(body.getMethod(), ((ParameterRef) rhs).getIndex());
+
+            if (Utils.isLocal(stmt.getLeftOp()))
+                update((Local) stmt.getLeftOp(), value, u);
+
+            addEdges(u, succs);
+            return;
+        }
+
+        // if stmt, only the edges the condition allows are executable
+        if (Utils.isIfStmt(u)){
+            JIfStmt stmt = (JIfStmt) u;
+            LatticeValue cond = evaluate(stmt.getCondition());
+
+            if (cond.isTop())
+                return;
+
+            Unit taken = null;
+            if (cond.isConstant()){
+                taken = Utils.extractIntValue(cond.getConstant()) != 0
+                    ? stmt.getTarget()
+                    : units.getSuccOf(u);
+            }
+
+            addBranchEdges(u, succs, taken);
+            return;
+        }
+
+        // switch stmt, pick the matching target if the key is known
+        if (u instanceof SwitchStmt){
+            SwitchStmt stmt = (SwitchStmt) u;
+            LatticeValue key = valueOf(stmt.getKey());
+
+            if (key.isTop())
+                return;
+
+            Unit taken = null;
+            if (key.isConstant())
+                taken = switchTarget(stmt, Utils.extractIntValue(key.getConstant()));
+
+            addBranchEdges(u, succs, taken);
+            return;
+        }
+
+        addEdges(u, succs);
+    }
+
+    // evaluates an rhs over the current lattice values
+    private LatticeValue evaluate(Value v){
+        if (Utils.isNumericConstant(v) || Utils.isLocal(v))
+            return valueOf(v);
+
+        // arithmetic, bitwise, shifts, cmp/cmpl/cmpg and conditions
+        if (v instanceof BinopExpr){
+            BinopExpr expr = (BinopExpr) v;
+            LatticeValue left = valueOf(expr.getOp1());
+            LatticeValue right = valueOf(expr.getOp2());
+
+            if (left.isBottom() || right.isBottom())
+                return LatticeValue.BOTTOM;
+            if (left.isTop() || right.isTop())
+                return LatticeValue.TOP;
+
+            return folded(ConstantEvaluator.fold(
+                expr, left.getConstant(), right.getConstant()
+            ));
+        }
+
+        // negation and primitive casts
+        if (Utils.isNegExpr(v) || Utils.isCastExpr(v)){
+            Value op = Utils.isNegExpr(v)
+                ? ((NegExpr) v).getOp()
+                : ((CastExpr) v).getOp();
+            LatticeValue value = valueOf(op);
+
+            if (!value.isConstant())
+                return value;
+
+            return folded(ConstantEvaluator.fold(v, value.getConstant()));
+        }
+
+        // calls to static and private methods with a constant result
+        if (summaries != null && v instanceof InvokeExpr)
+            return summaries.returned((InvokeExpr) v);
+
+        return LatticeValue.BOTTOM;
+    }
+
+    // expressions the evaluator leaves for runtime aren't constant
+    private LatticeValue folded(Constant c){
+        return c == null ? LatticeValue.BOTTOM : LatticeValue.constant(c);
+    }
+
+    LatticeValue valueOf(Value v){
+        if (Utils.isNumericConstant(v))
+            return LatticeValue.constant((Constant) v);
+
+        if (Utils.isLocal(v)){
+            LatticeValue value = values.get(v);
+            return value == null ? LatticeValue.TOP : value;
+        }
+
+        return LatticeValue.BOTTOM;
+    }
+
+    // lowers the value of 'local' and schedules its uses if it changed
+    private void update(Local local, LatticeValue value, Unit def){
+        LatticeValue old = valueOf(local);
+        LatticeValue lowered = old.meet(value);
+
+        if (lowered.equals(old))
+            return;
+
+        values.put(local, lowered);
+        for (UnitValueBoxPair pair : localUses.getUsesOf(def))
+            ssaWork.add(pair.getUnit());
+    }
+
+    private void addEdges(Unit from, List<Unit> succs){
+        for (Unit succ : succs)
+            cfgWork.add(new Unit[]{ from, succ });
+    }
+
+    // 'taken' == null means every branch target may execute,
+    // exceptional successors are always kept
+    private void addBranchEdges(Unit from, List<Unit> succs, Unit taken){
+        List<Unit> normal = graph.getUnexceptionalSuccsOf(from);
+
+        for (Unit succ : succs){
+            if (taken == null || succ == taken || !normal.contains(succ))
+                cfgWork.add(new Unit[]{ from, succ });
+        }
+    }
+
+    private Unit switchTarget(SwitchStmt stmt, int key){
+        if (stmt instanceof LookupSwitchStmt){
+            LookupSwitchStmt lookup = (LookupSwitchStmt) stmt;
+
+            for (int i = 0; i < lookup.getTargetCount(); ++i){
+                if (lookup.getLookupValue(i) == key)
+                    return lookup.getTarget(i);
+            }
+        } else if (stmt instanceof TableSwitchStmt){
+            TableSwitchStmt table = (TableSwitchStmt) stmt;
+
+            if (key >= table.getLowIndex() && key <= table.getHighIndex())
+                return table.getTarget(key - table.getLowIndex());
+        }
+
+        return stmt.getDefaultTarget();
+    }
+
+    private boolean markEdge(Unit from, Unit to){
+        Set<Unit> succs = executableEdges.get(from);
+        if (succs == null){
+            succs = new HashSet<>();
+            executableEdges.put(from, succs);
+        }
+
+        return succs.add(to);
+    }
+
+    // whether the phi argument coming from 'pred' can reach the block starting at 'head'
+    private boolean isExecutable(Unit pred, Unit head){
+        if (!reachable.contains(pred))
+            return false;
+
+        // exceptional predecessors aren't tracked edge by edge
+        if (handlers.contains(head))
+            return true;
+
+        Set<Unit> succs = executableEdges.get(pred);
+        return succs != null && succs.contains(head);
+    }
+
+    // first unit of the block a phi node belongs to
+    private Unit blockHead(Unit phi){
+        Unit head = phi;
+
+        while (true){
+            List<Unit> preds = graph.getPredsOf(head);
+            if (preds.size() != 1)
+                return head;
+
+            Unit pred = preds.get(0);
+            if (!Shimple.isPhiNode(pred) || graph.getSuccsOf(pred).size() != 1)
+                return head;
+
+            head = pred;
+        }
+    }
+
+    private void rewrite(){
+        // drop phi arguments flowing in through dead edges
+        for (Unit u : units){
+            if (!reachable.contains(u) || !Shimple.isPhiNode(u))
+                continue;
+
+            PhiExpr phiExpr = Shimple.getPhiExpr(u);
+            Unit head = blockHead(u);
+
+            for (int i = phiExpr.getArgCount() - 1; i >= 0; --i){
+                if (!isExecutable(phiExpr.getPred(i), head))
+                    phiExpr.removeArg(i);
+            }
+        }
+
+        // traps that no longer protect anything
+        Iterator<Trap> traps = body.getTraps().iterator();
+        while (traps.hasNext()){
+            Trap trap = traps.next();
+
+            if (!reachable.contains(trap.getHandlerUnit())
+                || !coversReachable(trap))
+                traps.remove();
+        }
+
+        List<Unit> deadStmts = new ArrayList<>();
+        HashMap<Unit, Unit> replaceWith = new HashMap<>();
+
+        for (Unit u : units){
+            if (!reachable.contains(u)){
+                deadStmts.add(u);
+                continue;
+            }
+
+            // x = c, for every def that turned out constant
+            if (Utils.isAssignmentStmt(u)){
+                JAssignStmt stmt = (JAssignStmt) u;
+                Value lhs = stmt.getLeftOp();
+                LatticeValue value = valueOf(lhs);
+
+                // a call with a constant result still has to be made
+                if (Utils.isLocal(lhs) && value.isConstant() && !stmt.containsInvokeExpr()){
+                    if (!Utils.isConstant(stmt.getRightOp()))
+                        ++constantsFolded;
+
+                    if (Shimple.isPhiNode(u))
+                        replaceWith.put(u, Jimple.v().newAssignStmt(lhs, value.getConstant()));
+                    else
+                        stmt.setRightOp(value.getConstant());
+
+                    continue;
+                }
+            }
+
+            // replace the uses of constant locals
+            for (ValueBox box : u.getUseBoxes()){
+                LatticeValue value = valueOf(box.getValue());
+
+                if (Utils.isLocal(box.getValue())
+                    && value.isConstant()
+                    && box.canContainValue(value.getConstant()))
+                    box.setValue(value.getConstant());
+            }
+
+            // fold branches that only ever go one way
+            if (Utils.isIfStmt(u) || u instanceof SwitchStmt){
+                Set<Unit> succs = executableEdges.get(u);
+                List<Unit> normal = graph.getUnexceptionalSuccsOf(u);
+                Unit fallThrough = units.getSuccOf(u);
+
+                Unit only = null;
+                int taken = 0;
+                for (Unit succ : normal){
+                    if (succs != null && succs.contains(succ)){
+                        only = succ;
+                        ++taken;
+                    }
+                }
+
+                if (taken != 1)
+                    continue;
+
+                ++branchesFolded;
+
+                if (Utils.isIfStmt(u) && only == fallThrough
+                    && ((JIfStmt) u).getTarget() != fallThrough)
+                    deadStmts.add(u);
+                else
+                    replaceWith.put(u, Jimple.v().newGotoStmt(only));
+            }
+        }
+
+        for (Map.Entry<Unit, Unit> entry : replaceWith.entrySet())
+            units.swapWith(entry.getKey(), entry.getValue());
+
+        for (Unit u : deadStmts)
+            units.remove(u);
+    }
+
+    private boolean coversReachable(Trap trap){
+        for (Unit u = trap.getBeginUnit();
+            u != null && u != trap.getEndUnit();
+            u = units.getSuccOf(u)){
+
+            if (reachable.contains(u))
+                return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * TOP (no information yet), a single constant, or BOTTOM (not a constant)
+     */
+    static final class LatticeValue {
+        static final LatticeValue TOP = new LatticeValue(null);
+        static final LatticeValue BOTTOM = new LatticeValue(null);
+
+        private LatticeValue(Constant constant){
+            this.constant = constant;
+        }
+
+        static LatticeValue constant(Constant c){
+            return new LatticeValue(c);
+        }
+
+        boolean isTop(){
+            return this == TOP;
+        }
+
+        boolean isBottom(){
+            return this == BOTTOM;
+        }
+
+        boolean isConstant(){
+            return constant != null;
+        }
+
+        Constant getConstant(){
+            return constant;
+        }
+
+        LatticeValue meet(LatticeValue other){
+            if (isTop())
+                return other;
+            if (other.isTop())
+                return this;
+            if (isBottom() || other.isBottom())
+                return BOTTOM;
+
+            return constant.equivTo(other.constant) ? this : BOTTOM;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if (!(obj instanceof LatticeValue))
+                return false;
+
+            LatticeValue other = (LatticeValue) obj;
+            if (isConstant() && other.isConstant())
+                return constant.equivTo(other.constant);
+
+            return this == other;
+        }
+
+        @Override
+        public int hashCode(){
+            return isConstant() ? constant.equivHashCode() : System.identityHashCode(this);
+        }
+
+        private final Constant constant;
+    }
+
+    private ShimpleBody body;
+    private MethodSummaries summaries;
+    private UnitPatchingChain units;
+    private ExceptionalUnitGraph graph;
+    private ShimpleLocalUses localUses;
+
+    // lattice value of every local, absent means TOP
+    private HashMap<Local, LatticeValue> values = new HashMap<>();
+    private HashMap<Unit, Set<Unit>> executableEdges = new HashMap<>();
+    private HashSet<Unit> reachable = new HashSet<>();
+    private HashSet<Unit> handlers = new HashSet<>();
+
+    private LinkedList<Unit[]> cfgWork = new LinkedList<>();
+    private LinkedList<Unit> ssaWork = new LinkedList<>();
 
+    private long defUseNanos;
+    private long propagationNanos;
+    private int worklistPops;
+    private int constantsFolded;
+    private int branchesFolded;
 }
@@ -0,0 +1,122 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+
+/*
+ * Decides from the jimple body alone whether the Shimple packs can change it
+ *
+ * Building SSA form is the most expensive step for most methods, and many
+ * methods give the passes nothing to work on. A body needs SSA form when
+ * one of its units
+ *
+ *   jumps backwards          a loop, for stp.le, stp.licm and stp.sr
+ *   calls a static or        which stp.inline may copy, or whose constant
+ *   private application      result is known in whole-program mode
+ *   method
+ *   defines a constant, or   for stp.cp to propagate and fold
+ *   computes with one
+ *   computes an expression   for stp.cp to number and reuse
+ *   again
+ *   reads a static field     for stp.cp to fold
+ *   set once to a constant
+ *   reads a parameter the    in whole-program mode
+ *   summaries know
+ *
+ * Anything else only moves values between locals, fields and calls, and
+ * goes to the jimple packs unchanged. The scan is a single pass over the
+ * units, without any graph.
+ */
+public class SsaPrescan {
+    SsaPrescan(Body body, MethodSummaries summaries, FieldConstants fields){
+        this.needsSsa = scan(body, summaries, fields);
+    }
+
+    boolean needsSsa(){
+        return needsSsa;
+    }
+
+    private static boolean scan(Body body, MethodSummaries summaries, FieldConstants fields){
+        UnitPatchingChain units = body.getUnits();
+
+        // units in chain order, a jump to a unit already seen goes backwards
+        Set<Unit> seen = new HashSet<>();
+        Set<List<Object>> computed = new HashSet<>();
+        for (Unit u : units){
+            seen.add(u);
+
+            for (UnitBox box : u.getUnitBoxes()){
+                if (seen.contains(box.getUnit()))
+                    return true;
+            }
+
+            Stmt stmt = (Stmt) u;
+            if (stmt.containsInvokeExpr() && isSummarized(stmt.getInvokeExpr().getMethod()))
+                return true;
+
+            if (stmt instanceof IdentityStmt){
+                Value rhs = ((IdentityStmt) stmt).getRightOp();
+                if (summaries != null && rhs instanceof ParameterRef
+                    && summaries.parameter(body.getMethod(), ((ParameterRef) rhs).getIndex()).isConstant())
+                    return true;
+            } else if (Utils.isAssignmentStmt(stmt)){
+                Value rhs = ((AssignStmt) stmt).getRightOp();
+                if (Utils.isNumericConstant(rhs) && Utils.isLocal(((AssignStmt) stmt).getLeftOp()))
+                    return true;
+                if (computesWithConstant(rhs))
+                    return true;
+                if (isPure(rhs) && !computed.add(expressionKey(rhs)))
+                    return true;
+                if (fields != null && rhs instanceof StaticFieldRef
+                    && Utils.isNumericConstant(fields.valueAt(body.getMethod(), ((StaticFieldRef) rhs).getField())))
+                    return true;
+            } else if (Utils.isIfStmt(stmt)){
+                if (computesWithConstant(((IfStmt) stmt).getCondition()))
+                    return true;
+            } else if (stmt instanceof SwitchStmt){
+                if (Utils.isConstant(((SwitchStmt) stmt).getKey()))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    // static and private methods are the ones stp.inline and the summaries handle
+    private static boolean isSummarized(SootMethod m){
+        return (m.isStatic() || m.isPrivate()) && m.isConcrete()
+            && m.getDeclaringClass().isApplicationClass();
+    }
+
+    // an operator with a constant operand, e.g. 'x + 1' or 'x == 0'
+    private static boolean computesWithConstant(Value v){
+        if (!(v instanceof Expr) || v instanceof InvokeExpr || v instanceof NewExpr)
+            return false;
+
+        for (ValueBox box : v.getUseBoxes()){
+            if (Utils.isNumericConstant(box.getValue()))
+                return true;
+        }
+
+        return false;
+    }
+
+    // the operators stp.cp numbers, when they can't throw
+    private static boolean isPure(Value v){
+        return v instanceof BinopExpr || Utils.isNegExpr(v) || Utils.isCastExpr(v);
+    }
+
+    // the operator and operand locals, 'a + b' twice is the same key
+    private static List<Object> expressionKey(Value v){
+        List<Object> key = new ArrayList<>();
+        key.add(v.getClass());
+        key.add(v.getType());
+
+        for (ValueBox box : v.getUseBoxes())
+            key.add(box.getValue());
+
+        return key;
+    }
+
+    private final boolean needsSsa;
+}
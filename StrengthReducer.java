@@ -0,0 +1,141 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+
+/*
+ * Strength reduction for int and long arithmetic by constants
+ *
+ *   x * 2^k       =>  x << k
+ *   x * (2^k + 1) =>  t = x << k; t + x
+ *   x * (2^k - 1) =>  t = x << k; t - x
+ *   x / 2^k       =>  rounds towards zero like idiv/ldiv:
+ *                     s = x >> (w - 1); b = s >>> (w - k); t = x + b; t >> k
+ *   x % 2^k       =>  same bias, then x - (t & -2^k)
+ *
+ * where w is 32 or 64. Every temporary is a fresh local, so the body stays
+ * in SSA form.
+ */
+public class StrengthReducer extends BodyTransformer {
+    @Override
+    protected void internalTransform(Body body, String phaseName, Map<String, String> options){
+        ShimpleBody sBody = (ShimpleBody) body;
+        UnitPatchingChain units = sBody.getUnits();
+
+        int rewrites = 0;
+        for (Unit u : new ArrayList<>(units)){
+            if (!Utils.isAssignmentStmt(u))
+                continue;
+
+            AssignStmt stmt = (AssignStmt) u;
+            if (!Utils.isLocal(stmt.getLeftOp()) || !(stmt.getRightOp() instanceof BinopExpr))
+                continue;
+
+            if (reduce(sBody, stmt, (BinopExpr) stmt.getRightOp()))
+                ++rewrites;
+        }
+
+        if (rewrites > 0)
+            System.out.println("[" + phaseName + "] " + body.getMethod().getSignature()
+                + ": " + rewrites + " rewrites");
+    }
+
+    private boolean reduce(ShimpleBody body, AssignStmt stmt, BinopExpr expr){
+        Type type = expr.getType();
+        if (!(type instanceof IntType) && !(type instanceof LongType))
+            return false;
+
+        Value x = expr.getOp1();
+        Value c = expr.getOp2();
+
+        // multiplication commutes
+        if (Utils.isMulExpr(expr) && Utils.isNumericConstant(x)){
+            x = expr.getOp2();
+            c = expr.getOp1();
+        }
+
+        if (!Utils.isLocal(x) || !Utils.isNumericConstant(c))
+            return false;
+
+        long value = Utils.isLongConstant(c)
+            ? Utils.extractLongValue(c)
+            : Utils.extractIntValue(c);
+        int width = type instanceof LongType ? 64 : 32;
+
+        // only positive powers of two (and their neighbours) that fit in the type
+        if (value <= 1 || value > (width == 64 ? Long.MAX_VALUE : Integer.MAX_VALUE))
+            return false;
+
+        Jimple j = Jimple.v();
+        List<Unit> prefix = new ArrayList<>();
+        Value result;
+
+        if (Utils.isMulExpr(expr)){
+            if (isPowerOfTwo(value)){
+                result = j.newShlExpr(x, IntConstant.v(log2(value)));
+            } else if (isPowerOfTwo(value - 1)){
+                Local shifted = assign(body, prefix, type,
+                    j.newShlExpr(x, IntConstant.v(log2(value - 1))));
+                result = j.newAddExpr(shifted, x);
+            } else if (isPowerOfTwo(value + 1)){
+                Local shifted = assign(body, prefix, type,
+                    j.newShlExpr(x, IntConstant.v(log2(value + 1))));
+                result = j.newSubExpr(shifted, x);
+            } else {
+                return false;
+            }
+        } else if (Utils.isDivExpr(expr) || Utils.isRemExpr(expr)){
+            if (!isPowerOfTwo(value))
+                return false;
+
+            int k = log2(value);
+
+            // negative dividends need 2^k - 1 added so the shift
+            // rounds towards zero: (x >> w-1) >>> w-k is exactly that
+            Value sign = x;
+            if (k > 1)
+                sign = assign(body, prefix, type, j.newShrExpr(x, IntConstant.v(width - 1)));
+
+            Local bias = assign(body, prefix, type, j.newUshrExpr(sign, IntConstant.v(width - k)));
+            Local biased = assign(body, prefix, type, j.newAddExpr(x, bias));
+
+            if (Utils.isDivExpr(expr)){
+                result = j.newShrExpr(biased, IntConstant.v(k));
+            } else {
+                Value mask = width == 64
+                    ? LongConstant.v(-value)
+                    : IntConstant.v((int) -value);
+                Local rounded = assign(body, prefix, type, j.newAndExpr(biased, mask));
+                result = j.newSubExpr(x, rounded);
+            }
+        } else {
+            return false;
+        }
+
+        // jumps to 'stmt' now land on the first new statement,
+        // phi nodes keep pointing at 'stmt' which still ends the block
+        if (!prefix.isEmpty())
+            body.getUnits().insertBefore(prefix, stmt);
+
+        stmt.setRightOp(result);
+        return true;
+    }
+
+    // t = rhs for a fresh local t, appended to 'prefix'
+    private Local assign(Body body, List<Unit> prefix, Type type, Value rhs){
+        Local local = Jimple.v().newLocal("$sr" + body.getLocalCount(), type);
+        body.getLocals().add(local);
+
+        prefix.add(Jimple.v().newAssignStmt(local, rhs));
+        return local;
+    }
+
+    private static boolean isPowerOfTwo(long value){
+        return value > 0 && (value & (value - 1)) == 0;
+    }
+
+    private static int log2(long value){
+        return 63 - Long.numberOfLeadingZeros(value);
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.*;
+
+/*
+ * Generates Java source of methods shaped for the propagators
+ *
+ *   statements       assignments per method, nested blocks included
+ *   depth            how deeply ifs and loops nest
+ *   fan-in           cases of the switches that assign a single local,
+ *                    which join in a phi with fan-in + 1 args
+ *   constant density chance that an operand is a literal rather than a local
+ *
+ * The same seed always generates the same class. Methods only use int
+ * arithmetic that can't throw, the code is only meant to be analyzed.
+ */
+public class SyntheticMethods {
+    SyntheticMethods(long seed, int statements, int depth, int fanIn, double constantDensity){
+        this.random = new Random(seed);
+        this.statements = statements;
+        this.depth = depth;
+        this.fanIn = fanIn;
+        this.constantDensity = constantDensity;
+    }
+
+    String generate(String className, int methods){
+        StringBuilder out = new StringBuilder();
+        out.append("public class ").append(className).append(" {\n");
+
+        for (int i = 0; i < methods; ++i){
+            loopVars = 0;
+
+            out.append("    static int m").append(i).append("(int p0, int p1){\n");
+            for (int v = 0; v < LOCALS; ++v){
+                out.append("        int v").append(v).append(" = ")
+                    .append(v < 2 ? "p" + v : String.valueOf(random.nextInt(10))).append(";\n");
+            }
+
+            block(out, statements, 0, "        ", new ArrayList<>());
+
+            out.append("        return v0");
+            for (int v = 1; v < LOCALS; ++v)
+                out.append(" + v").append(v);
+            out.append(";\n    }\n\n");
+        }
+
+        out.append("}\n");
+        return out.toString();
+    }
+
+    // emits about 'budget' assignments, returns how many it emitted
+    private int block(StringBuilder out, int budget, int level, String indent, List<String> inScope){
+        int emitted = 0;
+
+        while (emitted < budget){
+            int left = budget - emitted;
+            int kind = random.nextInt(4);
+
+            if (kind == 0 && level < depth && left > 2){
+                int inner = 1 + random.nextInt(left / 2);
+
+                out.append(indent).append("if (").append(operand(inScope)).append(" < ")
+                    .append(operand(inScope)).append("){\n");
+                emitted += block(out, inner, level + 1, indent + "    ", inScope);
+                out.append(indent).append("} else {\n");
+                emitted += block(out, Math.max(1, inner / 2), level + 1, indent + "    ", inScope);
+                out.append(indent).append("}\n");
+            } else if (kind == 1 && level < depth && left > 2){
+                String var = "i" + loopVars++;
+                List<String> scope = new ArrayList<>(inScope);
+                scope.add(var);
+
+                out.append(indent).append("for (int ").append(var).append(" = 0; ").append(var)
+                    .append(" < ").append(2 + random.nextInt(8)).append("; ++").append(var).append("){\n");
+                emitted += block(out, 1 + random.nextInt(left / 2), level + 1, indent + "    ", scope);
+                out.append(indent).append("}\n");
+            } else if (kind == 2 && fanIn > 1 && left >= fanIn){
+                String target = "v" + random.nextInt(LOCALS);
+
+                out.append(indent).append("switch (").append(operand(inScope)).append(" & ")
+                    .append(Integer.highestOneBit(fanIn) * 2 - 1).append("){\n");
+                for (int c = 0; c < fanIn; ++c){
+                    out.append(indent).append("    case ").append(c).append(": ").append(target)
+                        .append(" = ").append(expression(inScope)).append("; break;\n");
+                }
+                out.append(indent).append("    default: ").append(target).append(" = ")
+                    .append(expression(inScope)).append(";\n");
+                out.append(indent).append("}\n");
+
+                emitted += fanIn + 1;
+            } else {
+                out.append(indent).append("v").append(random.nextInt(LOCALS)).append(" = ")
+                    .append(expression(inScope)).append(";\n");
+                ++emitted;
+            }
+        }
+
+        return emitted;
+    }
+
+    private String expression(List<String> inScope){
+        String[] ops = { "+", "-", "*", "^", "&", "|" };
+        return operand(inScope) + " " + ops[random.nextInt(ops.length)] + " " + operand(inScope);
+    }
+
+    private String operand(List<String> inScope){
+        if (random.nextDouble() < constantDensity)
+            return String.valueOf(random.nextInt(100));
+
+        int index = random.nextInt(LOCALS + inScope.size());
+        return index < LOCALS ? "v" + index : inScope.get(index - LOCALS);
+    }
+
+    private static final int LOCALS = 8;
+
+    private Random random;
+    private int statements;
+    private int depth;
+    private int fanIn;
+    private double constantDensity;
+    private int loopVars;
+}
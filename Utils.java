@@ -12,6 +12,22 @@ public class Utils{
         return v instanceof IntConstant;
     }
 
+    public static boolean isLongConstant(Value v){
+        return v instanceof LongConstant;
+    }
+
+    public static boolean isFloatConstant(Value v){
+        return v instanceof FloatConstant;
+    }
+
+    public static boolean isDoubleConstant(Value v){
+        return v instanceof DoubleConstant;
+    }
+
+    public static boolean isNumericConstant(Value v){
+        return v instanceof NumericConstant;
+    }
+
     public static boolean isStringConstant(Value v){
         return v instanceof StringConstant;
     }
@@ -28,6 +44,10 @@ public class Utils{
         return u instanceof JIfStmt;
     }
 
+    public static boolean isGotoStmt(Unit u){
+        return u instanceof JGotoStmt;
+    }
+
     public static boolean isReturnStmt(Unit u){
         return u instanceof JReturnStmt;
     }
@@ -52,6 +72,42 @@ public class Utils{
         return v instanceof JSubExpr;
     }
 
+    public static boolean isRemExpr(Value v){
+        return v instanceof JRemExpr;
+    }
+
+    public static boolean isShlExpr(Value v){
+        return v instanceof JShlExpr;
+    }
+
+    public static boolean isShrExpr(Value v){
+        return v instanceof JShrExpr;
+    }
+
+    public static boolean isUshrExpr(Value v){
+        return v instanceof JUshrExpr;
+    }
+
+    public static boolean isXorExpr(Value v){
+        return v instanceof JXorExpr;
+    }
+
+    public static boolean isCmpExpr(Value v){
+        return v instanceof JCmpExpr;
+    }
+
+    public static boolean isCmplExpr(Value v){
+        return v instanceof JCmplExpr;
+    }
+
+    public static boolean isCmpgExpr(Value v){
+        return v instanceof JCmpgExpr;
+    }
+
+    public static boolean isCastExpr(Value v){
+        return v instanceof JCastExpr;
+    }
+
     public static boolean isPhiExpr(Value v){
         return v instanceof SPhiExpr;
     }
@@ -97,6 +153,34 @@ public class Utils{
         return c.value;
     }
 
+    public static long extractLongValue(Value v){
+        LongConstant c = (LongConstant) v;
+        return c.value;
+    }
+
+    public static float extractFloatValue(Value v){
+        FloatConstant c = (FloatConstant) v;
+        return c.value;
+    }
+
+    public static double extractDoubleValue(Value v){
+        DoubleConstant c = (DoubleConstant) v;
+        return c.value;
+    }
+
+    // <class>.<method>[-<param types>], safe to use as a file name
+    public static String fileNameOf(SootMethod m){
+        StringBuilder name = new StringBuilder();
+        name.append(m.getDeclaringClass().getName())
+            .append('.')
+            .append(m.getName());
+
+        for (Type t : m.getParameterTypes())
+            name.append('-').append(t);
+
+        return name.toString().replaceAll("[^A-Za-z0-9._$-]", "_");
+    }
+
     // prints the given object alongside its class name
     private void printObject(Object obj){
         System.out.println("[" + obj.getClass() + "] " + obj);
@@ -0,0 +1,557 @@
+import java.util.*;
+
+import soot.*;
+import soot.jimple.*;
+import soot.shimple.*;
+import soot.toolkits.graph.*;
+
+/*
+ * Interval analysis over the int locals of a ShimpleBody, folding the if
+ * stmts whose outcome the intervals decide
+ *
+ * Every int local gets a range [lo, hi] from its definition. A use is
+ * narrowed by the condition of every if edge leading to it, e.g. 'i' is
+ * below 10 wherever 'if i >= 10 goto exit' falling through dominates, and a
+ * phi arg by the edge it comes in on. A loop counter is thereby bounded by
+ * the loop's test, and an 'if' comparing it with 100 inside a loop running
+ * to 50 always goes the same way.
+ *
+ * A phi still growing after WIDEN_AFTER rounds is widened to the end of
+ * the int range in the direction it grows, and NARROWING passes over the
+ * definitions afterwards pull it back to what the tests allow.
+ *
+ * Only int arithmetic is modelled: a result that may wrap around, and
+ * whatever is read from a parameter, field, array or call, may be any int.
+ */
+public class ValueRangeAnalysis {
+    ValueRangeAnalysis(Body body){
+        this.body = (ShimpleBody) body;
+        this.units = body.getUnits();
+
+        // the graphs cost more than the analysis, bodies without an int
+        // comparison have nothing to fold
+        if (!hasIntBranch())
+            return;
+
+        analyze();
+        fold();
+    }
+
+    // adds what this run folded to 'metrics'
+    void record(MethodMetrics metrics){
+        metrics.branchesFolded += branchesFolded;
+    }
+
+    // a single pred, and not the method's entry, which is also entered
+    // when the method is called without any edge in the graph
+    private boolean hasSingleWayIn(Block b){
+        return b.getPreds().size() == 1 && !graph.getHeads().contains(b) && b.getHead() != units.getFirst();
+    }
+
+    private boolean hasIntBranch(){
+        for (Unit u : units){
+            if (Utils.isIfStmt(u) && isIntCondition(((IfStmt) u).getCondition()))
+                return true;
+        }
+
+        return false;
+    }
+
+    private void analyze(){
+        graph = new ExceptionalBlockGraph(body);
+        MHGDominatorsFinder<Block> dominators = new MHGDominatorsFinder<>(graph);
+
+        for (Block b : graph){
+            for (Unit u : b)
+                blockOf.put(u, b);
+        }
+
+        // the condition an if edge guarantees holds in the block it
+        // enters when that block can't be entered another way
+        Map<Block, Condition> entered = new HashMap<>();
+        for (Block b : graph){
+            Unit tail = b.getTail();
+            if (!Utils.isIfStmt(tail) || !isIntCondition(((IfStmt) tail).getCondition()))
+                continue;
+
+            Block target = blockOf.get(((IfStmt) tail).getTarget());
+            Block fallThrough = blockOf.get(units.getSuccOf(tail));
+            if (target == fallThrough)
+                continue;
+
+            if (hasSingleWayIn(target))
+                entered.put(target, new Condition((IfStmt) tail, true));
+            if (fallThrough != null && hasSingleWayIn(fallThrough))
+                entered.put(fallThrough, new Condition((IfStmt) tail, false));
+        }
+
+        // what holds in a block is what holds where its dominators are
+        // entered (every block for an unreachable one, which is harmless)
+        for (Block b : graph){
+            List<Condition> holding = new ArrayList<>();
+            for (Block d : dominators.getDominators(b)){
+                Condition c = entered.get(d);
+                if (c != null)
+                    holding.add(c);
+            }
+
+            conditions.put(b, holding);
+        }
+
+        List<Unit> defs = new ArrayList<>();
+        for (Unit u : units){
+            if (definesInt(u))
+                defs.add(u);
+        }
+
+        // rounds over the definitions in chain order until none grows
+        Map<Unit, Integer> grown = new HashMap<>();
+        boolean changed = true;
+        while (changed){
+            changed = false;
+
+            for (Unit u : defs){
+                Local local = (Local) ((DefinitionStmt) u).getLeftOp();
+                Range old = ranges.get(local);
+                Range range = Range.union(old, evaluate(u));
+
+                if (range == null || range.equals(old))
+                    continue;
+
+                if (old != null && Shimple.isPhiNode(u) && grown.merge(u, 1, Integer::sum) > WIDEN_AFTER)
+                    range = old.widen(range);
+
+                ranges.put(local, range);
+                changed = true;
+            }
+        }
+
+        // the ranges hold, so evaluating the definitions again can only tighten them
+        for (int pass = 0; pass < NARROWING; ++pass){
+            for (Unit u : defs){
+                Local local = (Local) ((DefinitionStmt) u).getLeftOp();
+                Range range = Range.intersect(ranges.get(local), evaluate(u));
+
+                if (range != null)
+                    ranges.put(local, range);
+            }
+        }
+    }
+
+    private void fold(){
+        Map<Unit, Unit> replaceWith = new HashMap<>();
+
+        for (Unit u : units){
+            if (!Utils.isIfStmt(u))
+                continue;
+
+            IfStmt stmt = (IfStmt) u;
+            ConditionExpr cond = (ConditionExpr) stmt.getCondition();
+            if (!isIntCondition(cond) || stmt.getTarget() == units.getSuccOf(u))
+                continue;
+
+            Block block = blockOf.get(u);
+            Range left = rangeAt(cond.getOp1(), block);
+            Range right = rangeAt(cond.getOp2(), block);
+            if (left == null || right == null)
+                continue;
+
+            Boolean outcome = Relation.of(cond).decide(left, right);
+            if (outcome == null)
+                continue;
+
+            // the edge never taken no longer hands its values to the phis
+            Unit taken = outcome ? stmt.getTarget() : units.getSuccOf(u);
+            Unit notTaken = outcome ? units.getSuccOf(u) : stmt.getTarget();
+            for (Unit phi = notTaken; phi != null && Shimple.isPhiNode(phi); phi = units.getSuccOf(phi)){
+                PhiExpr phiExpr = Shimple.getPhiExpr(phi);
+                int index = phiExpr.getArgIndex(u);
+                if (index >= 0)
+                    phiExpr.removeArg(index);
+            }
+
+            // a goto even to the fall through, CfgSimplifier removes it
+            // where that doesn't merge two edges into one phi arg
+            replaceWith.put(u, Jimple.v().newGotoStmt(taken));
+            ++branchesFolded;
+        }
+
+        for (Map.Entry<Unit, Unit> entry : replaceWith.entrySet())
+            units.swapWith(entry.getKey(), entry.getValue());
+    }
+
+    // the range of a definition over the current ranges, null while unknown
+    private Range evaluate(Unit u){
+        Block block = blockOf.get(u);
+
+        if (Shimple.isPhiNode(u)){
+            PhiExpr phiExpr = Shimple.getPhiExpr(u);
+            Unit head = block.getHead();
+
+            Range range = null;
+            for (int i = 0; i < phiExpr.getArgCount(); ++i)
+                range = Range.union(range, argRange(phiExpr.getValue(i), phiExpr.getPred(i), head));
+
+            return range;
+        }
+
+        if (u instanceof IdentityStmt)
+            return Range.FULL;
+
+        return evaluate(((AssignStmt) u).getRightOp(), block);
+    }
+
+    private Range evaluate(Value v, Block block){
+        if (Utils.isIntConstant(v) || Utils.isLocal(v))
+            return rangeAt(v, block);
+
+        if (Utils.isCmpExpr(v) || Utils.isCmplExpr(v) || Utils.isCmpgExpr(v))
+            return new Range(-1, 1);
+        if (v instanceof InstanceOfExpr)
+            return new Range(0, 1);
+        if (v instanceof LengthExpr)
+            return new Range(0, Integer.MAX_VALUE);
+
+        if (v instanceof BinopExpr){
+            BinopExpr expr = (BinopExpr) v;
+            if (!isInt(expr.getOp1()) || !isInt(expr.getOp2()))
+                return Range.FULL;
+
+            Range left = rangeAt(expr.getOp1(), block);
+            Range right = rangeAt(expr.getOp2(), block);
+            if (left == null || right == null)
+                return null;
+
+            return arithmetic(expr, left, right);
+        }
+
+        if (Utils.isNegExpr(v) && isInt(((NegExpr) v).getOp())){
+            Range op = rangeAt(((NegExpr) v).getOp(), block);
+            return op == null ? null : Range.of(-op.hi, -op.lo);
+        }
+
+        // i2b, i2s and i2c keep a value that fits, anything else is the type's range
+        if (Utils.isCastExpr(v) && isInt(((CastExpr) v).getOp())){
+            Range op = rangeAt(((CastExpr) v).getOp(), block);
+            Range type = Range.of(((CastExpr) v).getCastType());
+            return op == null ? null : (type.contains(op) ? op : type);
+        }
+
+        return Range.FULL;
+    }
+
+    // a result that may overflow is any int
+    private Range arithmetic(BinopExpr expr, Range left, Range right){
+        if (Utils.isAddExpr(expr))
+            return Range.of(left.lo + right.lo, left.hi + right.hi);
+        if (Utils.isSubExpr(expr))
+            return Range.of(left.lo - right.hi, left.hi - right.lo);
+
+        if (Utils.isMulExpr(expr)){
+            long a = left.lo * right.lo, b = left.lo * right.hi;
+            long c = left.hi * right.lo, d = left.hi * right.hi;
+            return Range.of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+        }
+
+        // a divisor of one sign makes the quotient monotone in both operands
+        if (Utils.isDivExpr(expr) && (right.lo > 0 || right.hi < 0)){
+            long a = left.lo / right.lo, b = left.lo / right.hi;
+            long c = left.hi / right.lo, d = left.hi / right.hi;
+            return Range.of(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+        }
+
+        // the remainder has the dividend's sign and is smaller than the divisor
+        if (Utils.isRemExpr(expr) && (right.lo > 0 || right.hi < 0)){
+            long max = Math.max(Math.abs(right.lo), Math.abs(right.hi)) - 1;
+            long lo = left.lo >= 0 ? 0 : Math.max(left.lo, -max);
+            long hi = left.hi <= 0 ? 0 : Math.min(left.hi, max);
+            return Range.of(lo, hi);
+        }
+
+        // a non-negative mask bounds the result
+        if (Utils.isAndExpr(expr)){
+            if (left.lo >= 0 && right.lo >= 0)
+                return Range.of(0, Math.min(left.hi, right.hi));
+            if (left.lo >= 0 || right.lo >= 0)
+                return Range.of(0, left.lo >= 0 ? left.hi : right.hi);
+
+            return Range.FULL;
+        }
+
+        // no bit above the highest of either operand is set
+        if ((Utils.isOrExpr(expr) || Utils.isXorExpr(expr)) && left.lo >= 0 && right.lo >= 0){
+            long bits = Long.highestOneBit(Math.max(left.hi, right.hi));
+            return Range.of(0, bits == 0 ? 0 : 2 * bits - 1);
+        }
+
+        if ((Utils.isShrExpr(expr) || (Utils.isUshrExpr(expr) && left.lo >= 0))
+            && right.lo == right.hi && right.lo >= 0 && right.lo < 32)
+            return Range.of(left.lo >> right.lo, left.hi >> right.lo);
+
+        return Range.FULL;
+    }
+
+    // an arg's range on the edge from 'pred' into the block at 'head'
+    private Range argRange(Value v, Unit pred, Unit head){
+        Range range = rangeAt(v, blockOf.get(pred));
+
+        if (range != null && Utils.isLocal(v) && Utils.isIfStmt(pred)){
+            IfStmt stmt = (IfStmt) pred;
+            Unit fallThrough = units.getSuccOf(pred);
+
+            if (isIntCondition(stmt.getCondition()) && stmt.getTarget() != fallThrough
+                && (stmt.getTarget() == head || fallThrough == head))
+                range = new Condition(stmt, stmt.getTarget() == head).narrow((Local) v, range);
+        }
+
+        return range;
+    }
+
+    // the range of an int value, narrowed by what holds in 'block'
+    private Range rangeAt(Value v, Block block){
+        if (Utils.isIntConstant(v)){
+            int c = Utils.extractIntValue(v);
+            return new Range(c, c);
+        }
+
+        Range range = ranges.get(v);
+        if (range == null || block == null)
+            return range;
+
+        for (Condition c : conditions.get(block)){
+            range = c.narrow((Local) v, range);
+            if (range == null)
+                return null;
+        }
+
+        return range;
+    }
+
+    private boolean definesInt(Unit u){
+        return u instanceof DefinitionStmt
+            && Utils.isLocal(((DefinitionStmt) u).getLeftOp())
+            && ((DefinitionStmt) u).getLeftOp().getType() instanceof IntegerType;
+    }
+
+    private static boolean isInt(Value v){
+        return Utils.isIntConstant(v) || (Utils.isLocal(v) && v.getType() instanceof IntegerType);
+    }
+
+    private static boolean isIntCondition(Value cond){
+        return cond instanceof ConditionExpr
+            && isInt(((ConditionExpr) cond).getOp1()) && isInt(((ConditionExpr) cond).getOp2());
+    }
+
+    /*
+     * The condition of an if stmt, as it holds on one of its edges
+     */
+    private final class Condition {
+        Condition(IfStmt stmt, boolean taken){
+            ConditionExpr cond = (ConditionExpr) stmt.getCondition();
+            this.left = cond.getOp1();
+            this.right = cond.getOp2();
+
+            Relation relation = Relation.of(cond);
+            this.relation = taken ? relation : relation.negate();
+        }
+
+        // 'range' of 'local' where the condition holds, null if it never does
+        Range narrow(Local local, Range range){
+            if (left == local)
+                return narrow(range, relation, right);
+            if (right == local)
+                return narrow(range, relation.mirror(), left);
+
+            return range;
+        }
+
+        // the other side's own range, narrowing it as well could recurse
+        private Range narrow(Range range, Relation relation, Value other){
+            Range bound = Utils.isIntConstant(other) ? rangeAt(other, null) : ranges.get(other);
+            return bound == null ? range : relation.narrow(range, bound);
+        }
+
+        private final Value left;
+        private final Value right;
+        private final Relation relation;
+    }
+
+    private enum Relation {
+        EQ, NE, LT, LE, GT, GE;
+
+        static Relation of(ConditionExpr cond){
+            if (Utils.isEqExpr(cond))
+                return EQ;
+            if (Utils.isNeExpr(cond))
+                return NE;
+            if (Utils.isLtExpr(cond))
+                return LT;
+            if (Utils.isLeExpr(cond))
+                return LE;
+            if (Utils.isGtExpr(cond))
+                return GT;
+
+            return GE;
+        }
+
+        // !(a < b) is a >= b
+        Relation negate(){
+            switch (this){
+                case EQ: return NE;
+                case NE: return EQ;
+                case LT: return GE;
+                case LE: return GT;
+                case GT: return LE;
+                default: return LT;
+            }
+        }
+
+        // a < b is b > a
+        Relation mirror(){
+            switch (this){
+                case LT: return GT;
+                case LE: return GE;
+                case GT: return LT;
+                case GE: return LE;
+                default: return this;
+            }
+        }
+
+        // the values 'a' may have with 'a relation b', b in 'bound'
+        Range narrow(Range a, Range bound){
+            switch (this){
+                case EQ: return Range.intersect(a, bound);
+                case LT: return Range.intersect(a, new Range(Long.MIN_VALUE, bound.hi - 1));
+                case LE: return Range.intersect(a, new Range(Long.MIN_VALUE, bound.hi));
+                case GT: return Range.intersect(a, new Range(bound.lo + 1, Long.MAX_VALUE));
+                case GE: return Range.intersect(a, new Range(bound.lo, Long.MAX_VALUE));
+                default:
+                    // only a single value can be cut off, and only at an end
+                    if (bound.lo != bound.hi)
+                        return a;
+                    if (a.lo == bound.lo)
+                        return Range.intersect(a, new Range(a.lo + 1, Long.MAX_VALUE));
+                    if (a.hi == bound.lo)
+                        return Range.intersect(a, new Range(Long.MIN_VALUE, a.hi - 1));
+
+                    return a;
+            }
+        }
+
+        // whether 'a relation b' always or never holds, null if it depends
+        Boolean decide(Range a, Range b){
+            switch (this){
+                case LT: return a.hi < b.lo ? Boolean.TRUE : (a.lo >= b.hi ? Boolean.FALSE : null);
+                case LE: return a.hi <= b.lo ? Boolean.TRUE : (a.lo > b.hi ? Boolean.FALSE : null);
+                case GT: return a.lo > b.hi ? Boolean.TRUE : (a.hi <= b.lo ? Boolean.FALSE : null);
+                case GE: return a.lo >= b.hi ? Boolean.TRUE : (a.hi < b.lo ? Boolean.FALSE : null);
+                case EQ: return equal(a, b);
+                default:
+                    Boolean equal = equal(a, b);
+                    return equal == null ? null : !equal;
+            }
+        }
+
+        private static Boolean equal(Range a, Range b){
+            if (a.lo == a.hi && b.lo == b.hi && a.lo == b.lo)
+                return Boolean.TRUE;
+            if (a.hi < b.lo || b.hi < a.lo)
+                return Boolean.FALSE;
+
+            return null;
+        }
+    }
+
+    /*
+     * [lo, hi] within the int range, null stands for no value (yet)
+     */
+    static final class Range {
+        static final Range FULL = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+        Range(long lo, long hi){
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        // bounds computed in longs, FULL if they may not fit an int
+        static Range of(long lo, long hi){
+            if (lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE)
+                return FULL;
+
+            return new Range(lo, hi);
+        }
+
+        static Range of(Type type){
+            if (type instanceof ByteType)
+                return new Range(Byte.MIN_VALUE, Byte.MAX_VALUE);
+            if (type instanceof ShortType)
+                return new Range(Short.MIN_VALUE, Short.MAX_VALUE);
+            if (type instanceof CharType)
+                return new Range(Character.MIN_VALUE, Character.MAX_VALUE);
+
+            return FULL;
+        }
+
+        static Range union(Range a, Range b){
+            if (a == null)
+                return b;
+            if (b == null)
+                return a;
+
+            return new Range(Math.min(a.lo, b.lo), Math.max(a.hi, b.hi));
+        }
+
+        static Range intersect(Range a, Range b){
+            if (a == null || b == null)
+                return null;
+
+            long lo = Math.max(a.lo, b.lo);
+            long hi = Math.min(a.hi, b.hi);
+            return lo > hi ? null : new Range(lo, hi);
+        }
+
+        boolean contains(Range other){
+            return lo <= other.lo && other.hi <= hi;
+        }
+
+        // this range grown to 'wider', with every bound that moved at the int limit
+        Range widen(Range wider){
+            return new Range(wider.lo < lo ? Integer.MIN_VALUE : lo, wider.hi > hi ? Integer.MAX_VALUE : hi);
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if (!(obj instanceof Range))
+                return false;
+
+            Range other = (Range) obj;
+            return lo == other.lo && hi == other.hi;
+        }
+
+        @Override
+        public int hashCode(){
+            return Long.hashCode(lo) * 31 + Long.hashCode(hi);
+        }
+
+        @Override
+        public String toString(){
+            return "[" + lo + ", " + hi + "]";
+        }
+
+        final long lo;
+        final long hi;
+    }
+
+    // rounds a phi may grow before it is widened, and passes narrowing it back
+    private static final int WIDEN_AFTER = 2;
+    private static final int NARROWING = 2;
+
+    private ShimpleBody body;
+    private UnitPatchingChain units;
+    private ExceptionalBlockGraph graph;
+    private int branchesFolded;
+
+    private final Map<Unit, Block> blockOf = new HashMap<>();
+    private final Map<Block, List<Condition>> conditions = new HashMap<>();
+    private final Map<Value, Range> ranges = new HashMap<>();
+}
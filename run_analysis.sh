@@ -2,4 +2,4 @@
 
 javac -g ./testcases/*.java -d ./testcases
 javac -cp .:sootclasses-trunk-jar-with-dependencies.jar *.java
-java -cp .:sootclasses-trunk-jar-with-dependencies.jar PA4
\ No newline at end of file
+java -cp .:sootclasses-trunk-jar-with-dependencies.jar PA4 "$@"
\ No newline at end of file
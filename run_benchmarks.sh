@@ -0,0 +1,8 @@
+#!/bin/bash
+
+# compares the classes in testcases with their sootOutput versions,
+# run ./run_analysis.sh first; the harness runs on the bundled Java 8 JRE
+mkdir -p benchmark
+javac -source 8 -target 8 -nowarn -d benchmark BenchmarkHarness.java
+javac -d benchmark BenchmarkRunner.java
+java -cp benchmark BenchmarkRunner "$@"
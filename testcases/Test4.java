@@ -0,0 +1,29 @@
+public class Test4 {
+    public static void main(String[] args) {
+        System.out.println(foo(5, "12"));
+        System.out.println(foo(5, "x"));
+        System.out.println(foo(2000, "7"));
+    }
+
+    // the loop leaves x above 1000, so the try block is the only way to
+    // change t, and both ways into the return merge in a phi
+    public static int foo(int x, String s){
+        while (true){
+            x = x * 3 + 1;
+            if (x > 1000)
+                break;
+            x = x - 7;
+        }
+
+        int t = x + 1;
+        if (t <= 5000){
+            try {
+                t = Integer.parseInt(s);
+            } catch (NumberFormatException e){
+                t = -1;
+            }
+        }
+
+        return t;
+    }
+}
@@ -0,0 +1,45 @@
+public class Test5 {
+    public static void main(String[] args) throws InterruptedException {
+        // spin never returns, the optimized version mustn't either
+        Thread spinner = new Thread(new Spinner());
+        spinner.setDaemon(true);
+        spinner.start();
+        spinner.join(500);
+
+        System.out.println(spinner.isAlive() ? "spinning" : "spin " + Spinner.result);
+        System.out.println(foo());
+    }
+
+    // k never equals 5, the inner loop runs forever
+    public static int spin(){
+        int s = 0;
+        for (int i = 0; i < 10; i++){
+            int k = 0;
+            while (k != 5)
+                k = k + 2;
+        }
+
+        return s;
+    }
+
+    // both loops end, the inner one first
+    public static int foo(){
+        int s = 0;
+        for (int i = 0; i < 10; i++){
+            int k = 0;
+            for (int j = 0; j < 5; j++)
+                k = k + 2;
+            s = k;
+        }
+
+        return s;
+    }
+
+    static class Spinner implements Runnable {
+        public void run(){
+            result = spin();
+        }
+
+        static volatile int result = -1;
+    }
+}
@@ -0,0 +1,20 @@
+public class Test6 {
+    public static void main(String[] args) {
+        foo();
+        System.out.println("n " + n);
+    }
+
+    // the loop starts the method, so its header is entered on the call as
+    // well as from the test at its end
+    public static synchronized void foo(){
+        do {
+        } while (!done());
+    }
+
+    static boolean done(){
+        n++;
+        return n >= 3;
+    }
+
+    static int n;
+}
@@ -0,0 +1,27 @@
+public class Test7 {
+    public static void main(String[] args) {
+        System.out.println(Sub.get() + " " + Base.v);
+    }
+}
+
+// initializing Sub initializes Base first, which calls into Sub before
+// Sub's own initializer has set f
+class Base {
+    static int v = Sub.get();
+
+    static {
+        System.out.println("during init " + v);
+    }
+}
+
+class Sub extends Base {
+    private static int f;
+
+    static {
+        f = 5;
+    }
+
+    static synchronized int get(){
+        return f * 2;
+    }
+}
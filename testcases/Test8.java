@@ -0,0 +1,50 @@
+public class Test8 {
+    public static void main(String[] args) {
+        for (int x = -2; x < 3; x++)
+            System.out.println(foo(x) + " " + bar(x) + " " + baz(x, x * 7) + " " + loop(x));
+    }
+
+    // t = 5 is dead once its value is an arg of the phi at the return, and
+    // the if jumps past it into the same block
+    public static int foo(int x){
+        int t = 0;
+        if (x > 0)
+            t = 5;
+
+        return t;
+    }
+
+    public static int bar(int x){
+        int t = x;
+        if (x > 0)
+            t = 5;
+
+        return t * 3;
+    }
+
+    // t * 0 folds to 0, leaving t = w * 3 and w dead, but t = w * 3 ends
+    // the block the if jumps past, so it has to stay without reading w
+    public static int baz(int x, int y){
+        int s = 0;
+        for (int i = 0; i < 4; i++){
+            int w = y + i;
+            int t = 0;
+            if (x > i)
+                t = w * 3;
+
+            s += x + t * 0;
+        }
+
+        return s;
+    }
+
+    public static int loop(int x){
+        int t = 0;
+        for (int i = 0; i < 3; i++){
+            if (x > i)
+                t = 9;
+        }
+
+        return t;
+    }
+}
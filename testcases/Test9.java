@@ -0,0 +1,50 @@
+public class Test9 {
+    public static void main(String[] args) {
+        for (int k = -1; k < 3; k++)
+            System.out.println(foo(k, 6) + " " + bar(k, 6) + " " + baz(k, 6));
+    }
+
+    // v = k * 3 is invariant and ends the block the if jumps past, so it
+    // has to stay, or the odd iterations would see it as well
+    public static int foo(int k, int n){
+        int s = 0;
+        for (int i = 0; i < n; i++){
+            int v = k;
+            if (i % 2 == 0)
+                v = k * 3;
+
+            s += v;
+        }
+
+        return s;
+    }
+
+    // w = k + 1 is invariant too and would leave along with v = w * 5
+    public static int bar(int k, int n){
+        int s = 0;
+        for (int i = 0; i < n; i++){
+            int v = k;
+            if (i % 3 == 0){
+                int w = k + 1;
+                v = w * 5;
+            }
+
+            s += v;
+        }
+
+        return s;
+    }
+
+    public static int baz(int k, int n){
+        int s = 0;
+        for (int i = 0; i < n; i++){
+            int v = i;
+            if (i > 2)
+                v = k << 2;
+
+            s += v;
+        }
+
+        return s;
+    }
+}